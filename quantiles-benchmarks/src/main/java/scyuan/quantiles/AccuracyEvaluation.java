@@ -0,0 +1,172 @@
+package scyuan.quantiles;
+
+import scyuan.quantiles.ckms.Quantile;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * 所有估计器在相同数据上的精度和占用对比，不属于单元测试，直接运行：
+ * java -cp quantiles-benchmarks.jar scyuan.quantiles.AccuracyEvaluation [size] [csv 路径]
+ * 1. 数据来自 Workload 的所有分布，每种分布生成一次，所有估计器单线程按相同顺序 observe
+ * 2. 对每个 Quantile 用排序后的数据计算返回值的真实 rank 区间，rank 误差为目标 rank 到区间的距离除以 n，
+ *    与 Quantile.error 比较
+ * 3. 同时给出 sample 个数、RetainedSize 估算的字节数和 observe 的吞吐量
+ * 结果以 markdown 表格输出到标准输出，给出 csv 路径时另外写一份 csv
+ *
+ * @author yuan.shichao
+ */
+public final class AccuracyEvaluation {
+
+    private static final String[] DISTRIBUTIONS = {"uniform", "lognormal", "pareto", "bimodal", "sorted", "reverse", "duplicates"};
+
+    private static final String[] COLUMNS = {"estimator", "distribution", "quantile", "error", "value", "rank_error",
+            "error_ratio", "within", "samples", "retained_bytes", "mops"};
+
+    private AccuracyEvaluation() {
+    }
+
+    public static void main(String[] args) throws IOException {
+        int size = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+        String csv = args.length > 1 ? args[1] : null;
+
+        Quantile[] quantiles = Estimators.quantiles();
+        List<String[]> rows = new ArrayList<>();
+        for (String distribution : DISTRIBUTIONS) {
+            double[] values = Workload.generate(distribution, size, 42);
+            double[] sorted = values.clone();
+            Arrays.sort(sorted);
+
+            for (String type : Estimators.ALL.split(",")) {
+                rows.addAll(evaluate(type, distribution, quantiles, values, sorted));
+            }
+        }
+
+        printMarkdown(rows, System.out);
+        if (csv != null) {
+            try (PrintStream out = new PrintStream(Files.newOutputStream(Paths.get(csv)), false, "UTF-8")) {
+                printCsv(rows, out);
+            }
+        }
+    }
+
+    static List<String[]> evaluate(String type, String distribution, Quantile[] quantiles,
+                                   double[] values, double[] sorted) {
+        Quantiles estimator = Estimators.create(type, quantiles);
+
+        long start = System.nanoTime();
+        for (double value : values) {
+            estimator.observe(value);
+        }
+        estimator.flushBuffer();
+        long elapsed = System.nanoTime() - start;
+
+        double mops = values.length * 1000.0 / elapsed;
+        int samples = estimator.getSampleSize();
+        long retained = RetainedSize.of(estimator);
+
+        List<String[]> rows = new ArrayList<>();
+        for (Quantile quantile : quantiles) {
+            double value = estimator.get(quantile.getQuantile());
+            double rankError = rankError(sorted, quantile.getQuantile(), value);
+            rows.add(new String[] {
+                    type,
+                    distribution,
+                    format(quantile.getQuantile()),
+                    format(quantile.getError()),
+                    format(value),
+                    format(rankError),
+                    format(rankError / quantile.getError()),
+                    rankError <= quantile.getError() ? "yes" : "no",
+                    String.valueOf(samples),
+                    String.valueOf(retained),
+                    String.format(Locale.ROOT, "%.2f", mops)
+            });
+        }
+        return rows;
+    }
+
+    /**
+     * value 的真实 rank 区间为 [#(x < value), #(x <= value)]，目标 rank 在区间内时误差为 0
+     */
+    static double rankError(double[] sorted, double q, double value) {
+        if (Double.isNaN(value)) {
+            return Double.NaN;
+        }
+        int n = sorted.length;
+        double target = q * n;
+        int lower = lowerBound(sorted, value);
+        int upper = upperBound(sorted, value);
+        if (target < lower) {
+            return (lower - target) / n;
+        } else if (target > upper) {
+            return (target - upper) / n;
+        }
+        return 0;
+    }
+
+    /**
+     * 第一个不小于 value 的下标
+     */
+    private static int lowerBound(double[] sorted, double value) {
+        int low = 0;
+        int high = sorted.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (sorted[mid] < value) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * 第一个大于 value 的下标
+     */
+    private static int upperBound(double[] sorted, double value) {
+        int low = 0;
+        int high = sorted.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (sorted[mid] <= value) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    private static String format(double value) {
+        return String.format(Locale.ROOT, "%.6g", value);
+    }
+
+    private static void printMarkdown(List<String[]> rows, PrintStream out) {
+        out.println("| " + String.join(" | ", COLUMNS) + " |");
+        StringBuilder separator = new StringBuilder("|");
+        for (int i = 0; i < COLUMNS.length; i++) {
+            separator.append(" --- |");
+        }
+        out.println(separator);
+        for (String[] row : rows) {
+            out.println("| " + String.join(" | ", row) + " |");
+        }
+    }
+
+    private static void printCsv(List<String[]> rows, PrintStream out) {
+        out.println(String.join(",", COLUMNS));
+        for (String[] row : rows) {
+            out.println(String.join(",", row));
+        }
+    }
+
+}
@@ -0,0 +1,103 @@
+package scyuan.quantiles;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.Result;
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.Collection;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 每次 observe 和 get 分配的字节数，单线程，配合 GCProfiler 使用
+ * java -cp quantiles-benchmarks.jar scyuan.quantiles.AllocationBenchmark
+ * 或者 java -jar quantiles-benchmarks.jar AllocationBenchmark -prof gc，看 gc.alloc.rate.norm
+ * main 只使用 uniform 分布，输出每个估计器的 B/op 和 GC 次数
+ *
+ * @author yuan.shichao
+ */
+
+@Warmup(iterations = 2, time = 5, timeUnit = TimeUnit.SECONDS)
+@Measurement(iterations = 3, time = 5, timeUnit = TimeUnit.SECONDS)
+@Fork(1)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class AllocationBenchmark {
+
+    @State(Scope.Thread)
+    public static class Estimator {
+        @Param({"mt", "queue", "primitive", "threadlocal", "striped", "tdigest", "kll", "histogram", "ddsketch", "gk", "hybrid"})
+        public String type;
+
+        private Quantiles estimator;
+
+        private double[] percentiles;
+
+        private int index = 0;
+
+        @Setup
+        public void setup() {
+            estimator = Estimators.create(type, Estimators.quantiles());
+
+            // 预先写入数据，测量的是摘要稳定以后的分配，hybrid 也已经转换为 sketch
+            double[] values = Workload.generate("uniform", Workload.SIZE, 7);
+            for (double value : values) {
+                estimator.observe(value);
+            }
+            estimator.flushBuffer();
+
+            Collection<Double> monitored = estimator.monitored();
+            percentiles = new double[monitored.size()];
+            int i = 0;
+            for (Double percentile : monitored) {
+                percentiles[i++] = percentile;
+            }
+        }
+
+        double nextPercentile() {
+            double percentile = percentiles[index];
+            index = index + 1 == percentiles.length ? 0 : index + 1;
+            return percentile;
+        }
+    }
+
+    @Benchmark
+    public double observe(Estimator estimator, Workload.Stream values) {
+        double value = values.next();
+        estimator.estimator.observe(value);
+        return value;
+    }
+
+    @Benchmark
+    public double get(Estimator estimator) {
+        return estimator.estimator.get(estimator.nextPercentile());
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        Options options = new OptionsBuilder()
+                .include(AllocationBenchmark.class.getName())
+                .param("distribution", "uniform")
+                .addProfiler(GCProfiler.class)
+                .build();
+
+        System.out.println("| estimator | operation | ns/op | B/op | gc count |");
+        System.out.println("| --- | --- | --- | --- | --- |");
+        for (RunResult result : new Runner(options).run()) {
+            String label = result.getParams().getBenchmark();
+            String operation = label.substring(label.lastIndexOf('.') + 1);
+            Result<?> allocation = result.getSecondaryResults().get("\u00b7gc.alloc.rate.norm");
+            Result<?> gcCount = result.getSecondaryResults().get("\u00b7gc.count");
+            System.out.println(String.format(Locale.ROOT, "| %s | %s | %.1f | %.2f | %.0f |",
+                    result.getParams().getParam("type"),
+                    operation,
+                    result.getPrimaryResult().getScore(),
+                    allocation == null ? Double.NaN : allocation.getScore(),
+                    gcCount == null ? 0 : gcCount.getScore()));
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package scyuan.quantiles;
+
+import scyuan.quantiles.ckms.*;
+import scyuan.quantiles.ddsketch.DDSketchQuantiles;
+import scyuan.quantiles.gk.GKQuantiles;
+import scyuan.quantiles.histogram.HistogramQuantiles;
+import scyuan.quantiles.kll.KLLQuantiles;
+import scyuan.quantiles.tdigest.TDigestQuantiles;
+
+/**
+ * 各个 benchmark 共用的百分位和估计器配置
+ *
+ * @author yuan.shichao
+ */
+public final class Estimators {
+
+    /**
+     * 所有估计器的名字，可以直接用作 @Param
+     */
+    public static final String ALL = "mt,queue,primitive,threadlocal,striped,tdigest,kll,histogram,ddsketch,gk,hybrid";
+
+    /**
+     * 可以指定 buffer 大小的估计器，见 ThreadScalingBenchmark
+     */
+    public static final String BUFFERED = "mt,queue,primitive,threadlocal";
+
+    private Estimators() {
+    }
+
+    public static Quantile[] quantiles() {
+        return new Quantile[] {
+                new Quantile(0.50, 0.01),
+                new Quantile(0.90, 0.01),
+                new Quantile(0.95, 0.001),
+                new Quantile(0.99, 0.001),
+                new Quantile(0.999, 0.0001),
+                new Quantile(0.9999, 0.00001)};
+    }
+
+    /**
+     * @param bufferSize 只对 BUFFERED 中的估计器有效
+     */
+    public static Quantiles create(String type, Quantile[] quantiles, int bufferSize) {
+        switch (type) {
+            case "mt":
+                return new CKMSQuantilesMT(quantiles, bufferSize);
+            case "queue":
+                return new CKMSQuantilesQueue(quantiles, Math.max(1024, bufferSize * 4), OverflowPolicy.BLOCK, bufferSize);
+            case "primitive":
+                return new CKMSQuantilesPrimitive(quantiles, SnapshotPolicy.locked(), bufferSize);
+            case "threadlocal":
+                return new CKMSQuantilesThreadLocal(quantiles, SnapshotPolicy.locked(), bufferSize);
+            default:
+                return create(type, quantiles);
+        }
+    }
+
+    public static Quantiles create(String type, Quantile[] quantiles) {
+        switch (type) {
+            case "mt":
+                return new CKMSQuantilesMT(quantiles);
+            case "queue":
+                return new CKMSQuantilesQueue(quantiles);
+            case "primitive":
+                return new CKMSQuantilesPrimitive(quantiles);
+            case "threadlocal":
+                return new CKMSQuantilesThreadLocal(quantiles);
+            case "striped":
+                return new CKMSQuantilesStriped(quantiles);
+            case "tdigest":
+                return new TDigestQuantiles(quantiles, 200);
+            case "kll":
+                return new KLLQuantiles(quantiles, 200);
+            case "histogram":
+                return new HistogramQuantiles(quantiles, 1, 10000000000d, 2);
+            case "ddsketch":
+                return new DDSketchQuantiles(quantiles, 0.01);
+            case "gk":
+                return new GKQuantiles(quantiles, 0.001);
+            case "hybrid":
+                return new HybridQuantiles(quantiles, 4096);
+            default:
+                return new CKMSQuantilesMT(quantiles);
+        }
+    }
+
+}
@@ -0,0 +1,99 @@
+package scyuan.quantiles;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Collection;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 写线程持续 observe 时读线程看到的延迟
+ * 1. query: 3 个线程 observe，1 个线程依次 get 所有 monitored 百分位
+ * 2. flush: 3 个线程 observe，1 个线程 flushBuffer
+ * 读写两边分别给出 SampleTime 的百分位，线程比例可以用 -tg 修改，例如 -tg 7,1
+ * 写入的数据分布见 Workload
+ *
+ * @author yuan.shichao
+ */
+
+@Warmup(iterations = 2, time = 10, timeUnit = TimeUnit.SECONDS)
+@Measurement(iterations = 3, time = 20, timeUnit = TimeUnit.SECONDS)
+@Fork(2)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class QuantilesReadWriteBenchmark {
+
+    @State(Scope.Group)
+    public static class Estimator {
+        @Param({"mt", "queue", "primitive", "threadlocal", "striped", "tdigest", "kll", "histogram", "ddsketch", "gk", "hybrid"})
+        public String type;
+
+        private Quantiles estimator;
+
+        private double[] percentiles;
+
+        @Setup
+        public void setup() {
+            estimator = Estimators.create(type, Estimators.quantiles());
+
+            // 先写入一部分数据，避免读线程一开始只读到空摘要
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            for (int i = 0; i < 100000; i++) {
+                estimator.observe(random.nextDouble(10000000000d));
+            }
+            estimator.flushBuffer();
+
+            Collection<Double> monitored = estimator.monitored();
+            percentiles = new double[monitored.size()];
+            int i = 0;
+            for (Double percentile : monitored) {
+                percentiles[i++] = percentile;
+            }
+        }
+
+        @TearDown
+        public void teardown() {
+            estimator.flushBuffer();
+            System.out.println();
+            System.out.println("[Stat] # of samples: " + estimator.getSampleSize());
+            System.out.println("[Stat] # of data: " + estimator.getCount());
+            System.out.println();
+        }
+    }
+
+    @Benchmark
+    @Group("query")
+    @GroupThreads(3)
+    public double queryWriter(Estimator estimator, Workload.Stream values) {
+        double value = values.next();
+        estimator.estimator.observe(value);
+        return value;
+    }
+
+    @Benchmark
+    @Group("query")
+    @GroupThreads(1)
+    public double queryReader(Estimator estimator) {
+        double sum = 0;
+        for (double percentile : estimator.percentiles) {
+            sum += estimator.estimator.get(percentile);
+        }
+        return sum;
+    }
+
+    @Benchmark
+    @Group("flush")
+    @GroupThreads(3)
+    public double flushWriter(Estimator estimator, Workload.Stream values) {
+        double value = values.next();
+        estimator.estimator.observe(value);
+        return value;
+    }
+
+    @Benchmark
+    @Group("flush")
+    @GroupThreads(1)
+    public void flusher(Estimator estimator) {
+        estimator.estimator.flushBuffer();
+    }
+}
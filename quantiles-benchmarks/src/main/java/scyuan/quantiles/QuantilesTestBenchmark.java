@@ -1,11 +1,8 @@
 package scyuan.quantiles;
 
 import org.openjdk.jmh.annotations.*;
-import scyuan.quantiles.ckms.*;
+import scyuan.quantiles.ckms.Quantile;
 
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -20,50 +17,27 @@ public class QuantilesTestBenchmark {
 
     public static class BaseEstimator {
         private Quantiles estimator;
-        private ScheduledExecutorService executor;
+        private QuantilesRegistry registry;
 
         public Quantiles get() {
             return estimator;
         }
 
         protected void setup(String type) {
-            Quantile[] quantiles = new Quantile[] {
-                    new Quantile(0.50, 0.01),
-                    new Quantile(0.90, 0.01),
-                    new Quantile(0.95, 0.001),
-                    new Quantile(0.99, 0.001),
-                    new Quantile(0.999, 0.0001),
-                    new Quantile(0.9999, 0.00001)};
-
-            switch (type) {
-                case "mt":
-                    estimator = new CKMSQuantilesMT(quantiles);
-                    break;
-                case "queue":
-                    estimator = new CKMSQuantilesQueue(quantiles);
-                    break;
-                case "primitive":
-                    estimator = new CKMSQuantilesPrimitive(quantiles);
-                    break;
-                case "threadlocal":
-                    estimator = new CKMSQuantilesThreadLocal(quantiles);
-                    break;
-                default:
-                    estimator = new CKMSQuantilesMT(quantiles);
-            }
-
-            executor = Executors.newSingleThreadScheduledExecutor();
-            executor.scheduleAtFixedRate(() -> {
-                estimator.flushBuffer();
-                System.out.println();
-                System.out.println("[Stat] # of samples: " + estimator.getSampleSize());
-                System.out.println("[Stat] # of data: " + estimator.getSize());
-                System.out.println();
-            }, 1, 1, TimeUnit.MINUTES);
+            Quantile[] quantiles = Estimators.quantiles();
+            estimator = Estimators.create(type, quantiles);
+
+            registry = new QuantilesRegistry(quantiles, 1, TimeUnit.MINUTES, 1);
+            registry.register(type, estimator);
         }
 
         protected void teardown() {
-            executor.shutdown();
+            registry.close();
+            estimator.flushBuffer();
+            System.out.println();
+            System.out.println("[Stat] # of samples: " + estimator.getSampleSize());
+            System.out.println("[Stat] # of data: " + estimator.getCount());
+            System.out.println();
         }
     }
 
@@ -123,30 +97,177 @@ public class QuantilesTestBenchmark {
 
     }
 
+    @State(Scope.Benchmark)
+    public static class EstimatorStriped extends BaseEstimator {
+        @Setup
+        public void setup() {
+            super.setup("striped");
+        }
+
+        @TearDown
+        public void teardown() {
+            super.teardown();
+        }
+
+    }
+
+    @State(Scope.Benchmark)
+    public static class EstimatorTDigest extends BaseEstimator {
+        @Setup
+        public void setup() {
+            super.setup("tdigest");
+        }
+
+        @TearDown
+        public void teardown() {
+            super.teardown();
+        }
+
+    }
+
+    @State(Scope.Benchmark)
+    public static class EstimatorKLL extends BaseEstimator {
+        @Setup
+        public void setup() {
+            super.setup("kll");
+        }
+
+        @TearDown
+        public void teardown() {
+            super.teardown();
+        }
+
+    }
+
+    @State(Scope.Benchmark)
+    public static class EstimatorHistogram extends BaseEstimator {
+        @Setup
+        public void setup() {
+            super.setup("histogram");
+        }
+
+        @TearDown
+        public void teardown() {
+            super.teardown();
+        }
+
+    }
+
+    @State(Scope.Benchmark)
+    public static class EstimatorDDSketch extends BaseEstimator {
+        @Setup
+        public void setup() {
+            super.setup("ddsketch");
+        }
+
+        @TearDown
+        public void teardown() {
+            super.teardown();
+        }
+
+    }
+
+    @State(Scope.Benchmark)
+    public static class EstimatorGK extends BaseEstimator {
+        @Setup
+        public void setup() {
+            super.setup("gk");
+        }
+
+        @TearDown
+        public void teardown() {
+            super.teardown();
+        }
+
+    }
+
+    @State(Scope.Benchmark)
+    public static class EstimatorHybrid extends BaseEstimator {
+        @Setup
+        public void setup() {
+            super.setup("hybrid");
+        }
+
+        @TearDown
+        public void teardown() {
+            super.teardown();
+        }
+
+    }
+
+    @Benchmark
+    public double mt(EstimatorMT estimator, Workload.Stream values) {
+        double value = values.next();
+        estimator.get().observe(value);
+        return value;
+    }
+
+    @Benchmark
+    public double queue(EstimatorQueue estimator, Workload.Stream values) {
+        double value = values.next();
+        estimator.get().observe(value);
+        return value;
+    }
+
+    @Benchmark
+    public double primitive(EstimatorPrimitive estimator, Workload.Stream values) {
+        double value = values.next();
+        estimator.get().observe(value);
+        return value;
+    }
+
+    @Benchmark
+    public double threadlocal(EstimatorThreadLocal estimator, Workload.Stream values) {
+        double value = values.next();
+        estimator.get().observe(value);
+        return value;
+    }
+
+    @Benchmark
+    public double striped(EstimatorStriped estimator, Workload.Stream values) {
+        double value = values.next();
+        estimator.get().observe(value);
+        return value;
+    }
+
+    @Benchmark
+    public double tdigest(EstimatorTDigest estimator, Workload.Stream values) {
+        double value = values.next();
+        estimator.get().observe(value);
+        return value;
+    }
+
+    @Benchmark
+    public double kll(EstimatorKLL estimator, Workload.Stream values) {
+        double value = values.next();
+        estimator.get().observe(value);
+        return value;
+    }
+
     @Benchmark
-    public double mt(EstimatorMT estimator) {
-        double value = ThreadLocalRandom.current().nextDouble(10000000000d);
+    public double histogram(EstimatorHistogram estimator, Workload.Stream values) {
+        double value = values.next();
         estimator.get().observe(value);
         return value;
     }
 
     @Benchmark
-    public double queue(EstimatorQueue estimator) {
-        double value = ThreadLocalRandom.current().nextDouble(10000000000d);
+    public double ddsketch(EstimatorDDSketch estimator, Workload.Stream values) {
+        double value = values.next();
         estimator.get().observe(value);
         return value;
     }
 
     @Benchmark
-    public double primitive(EstimatorPrimitive estimator) {
-        double value = ThreadLocalRandom.current().nextDouble(10000000000d);
+    public double gk(EstimatorGK estimator, Workload.Stream values) {
+        double value = values.next();
         estimator.get().observe(value);
         return value;
     }
 
     @Benchmark
-    public double threadlocal(EstimatorThreadLocal estimator) {
-        double value = ThreadLocalRandom.current().nextDouble(10000000000d);
+    public double hybrid(EstimatorHybrid estimator, Workload.Stream values) {
+        double value = values.next();
         estimator.get().observe(value);
         return value;
     }
@@ -0,0 +1,133 @@
+package scyuan.quantiles;
+
+import java.lang.reflect.Array;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 通过反射遍历对象图估算占用的字节数，按 64 位 JVM 开启压缩指针计算：对象头 12 字节，数组头 16 字节，引用 4 字节，8 字节对齐
+ * 1. 不包括 static 字段、Class 和 Thread
+ * 2. 无法访问的 JDK 内部字段只计算对象本身，不继续遍历；Collection 和 Map 另外通过迭代访问元素，
+ *    内部节点在 JDK 9 以后不计算，结果是近似值，只用于不同估计器之间比较
+ *
+ * @author yuan.shichao
+ */
+public final class RetainedSize {
+
+    private static final Map<Class<?>, ClassLayout> LAYOUTS = new ConcurrentHashMap<>();
+
+    private RetainedSize() {
+    }
+
+    public static long of(Object root) {
+        Set<Object> visited = Collections.newSetFromMap(new IdentityHashMap<>());
+        Deque<Object> pending = new ArrayDeque<>();
+        pending.push(root);
+
+        long bytes = 0;
+        while (!pending.isEmpty()) {
+            Object object = pending.pop();
+            if (!visited.add(object)) {
+                continue;
+            }
+
+            Class<?> type = object.getClass();
+            if (type.isArray()) {
+                int length = Array.getLength(object);
+                Class<?> component = type.getComponentType();
+                bytes += align(16 + (long) length * sizeOf(component));
+                if (!component.isPrimitive()) {
+                    for (Object element : (Object[]) object) {
+                        push(pending, element);
+                    }
+                }
+                continue;
+            }
+
+            ClassLayout layout = LAYOUTS.computeIfAbsent(type, ClassLayout::new);
+            bytes += layout.size;
+            if (object instanceof Collection) {
+                for (Object element : (Collection<?>) object) {
+                    push(pending, element);
+                }
+            } else if (object instanceof Map) {
+                for (Map.Entry<?, ?> entry : ((Map<?, ?>) object).entrySet()) {
+                    push(pending, entry.getKey());
+                    push(pending, entry.getValue());
+                }
+            }
+            for (Field field : layout.references) {
+                try {
+                    push(pending, field.get(object));
+                } catch (IllegalAccessException e) {
+                    // 只计算对象本身
+                }
+            }
+        }
+        return bytes;
+    }
+
+    private static void push(Deque<Object> pending, Object object) {
+        if (object != null && !(object instanceof Class) && !(object instanceof Thread)) {
+            pending.push(object);
+        }
+    }
+
+    private static long align(long size) {
+        return (size + 7) & ~7L;
+    }
+
+    private static int sizeOf(Class<?> type) {
+        if (type == long.class || type == double.class) {
+            return 8;
+        } else if (type == int.class || type == float.class) {
+            return 4;
+        } else if (type == short.class || type == char.class) {
+            return 2;
+        } else if (type == byte.class || type == boolean.class) {
+            return 1;
+        }
+        return 4;
+    }
+
+    private static class ClassLayout {
+        private final long size;
+
+        /**
+         * 可以访问的引用字段
+         */
+        private final List<Field> references = new ArrayList<>();
+
+        ClassLayout(Class<?> type) {
+            long size = 12;
+            for (Class<?> c = type; c != null; c = c.getSuperclass()) {
+                for (Field field : c.getDeclaredFields()) {
+                    if (Modifier.isStatic(field.getModifiers())) {
+                        continue;
+                    }
+                    size += sizeOf(field.getType());
+                    if (!field.getType().isPrimitive()) {
+                        try {
+                            field.setAccessible(true);
+                            references.add(field);
+                        } catch (RuntimeException e) {
+                            // JDK 9 以后模块内部的字段无法访问
+                        }
+                    }
+                }
+            }
+            this.size = align(size);
+        }
+    }
+
+}
@@ -0,0 +1,169 @@
+package scyuan.quantiles;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.results.Result;
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import scyuan.quantiles.ckms.LockProfiler;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 线程数和 buffer 大小对 CKMS 估计器吞吐量的影响
+ * 1. main 依次用 1, 2, 4 ... 2 × CPU 个线程运行 observe，每个组合覆盖所有 type 和 bufferSize，
+ *    JVM 开启 LockProfiler，每个线程在 lock() 上阻塞的时间作为 AuxCounters 一起输出
+ * 2. 结果每行一个 (type, bufferSize, threads)，列为吞吐量、相对单线程的扩展效率、每次 observe 的锁竞争次数
+ *    和阻塞时间占比，可以直接画图
+ * java -cp quantiles-benchmarks.jar scyuan.quantiles.ThreadScalingBenchmark [csv 路径]
+ * 单独用 JMH 运行时需要自己加 -t 和 -jvmArgsAppend -Dscyuan.quantiles.lockProfiling=true
+ *
+ * @author yuan.shichao
+ */
+
+@Warmup(iterations = 2, time = 5, timeUnit = TimeUnit.SECONDS)
+@Measurement(iterations = ThreadScalingBenchmark.MEASUREMENT_ITERATIONS,
+        time = ThreadScalingBenchmark.MEASUREMENT_SECONDS, timeUnit = TimeUnit.SECONDS)
+@Fork(1)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class ThreadScalingBenchmark {
+
+    static final int MEASUREMENT_ITERATIONS = 3;
+
+    static final int MEASUREMENT_SECONDS = 10;
+
+    @State(Scope.Benchmark)
+    public static class Estimator {
+        @Param({"mt", "queue", "primitive", "threadlocal"})
+        public String type;
+
+        @Param({"32", "200", "1000"})
+        public int bufferSize;
+
+        private Quantiles estimator;
+
+        @Setup
+        public void setup() {
+            estimator = Estimators.create(type, Estimators.quantiles(), bufferSize);
+        }
+    }
+
+    /**
+     * 每个线程每次迭代的锁统计，EVENTS 在所有线程和所有测量迭代间求和
+     */
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    @State(Scope.Thread)
+    public static class Contention {
+        public long contended;
+        public long blockedNanos;
+        public long failedTryLocks;
+
+        @Setup(Level.Iteration)
+        public void setup() {
+            LockProfiler.currentThread().reset();
+            contended = 0;
+            blockedNanos = 0;
+            failedTryLocks = 0;
+        }
+
+        @TearDown(Level.Iteration)
+        public void teardown() {
+            LockProfiler.Stats stats = LockProfiler.currentThread();
+            contended = stats.getContended();
+            blockedNanos = stats.getBlockedNanos();
+            failedTryLocks = stats.getFailedTryLocks();
+        }
+    }
+
+    @Benchmark
+    public double observe(Estimator estimator, Workload.Stream values, Contention contention) {
+        double value = values.next();
+        estimator.estimator.observe(value);
+        return value;
+    }
+
+    public static void main(String[] args) throws RunnerException, IOException {
+        int cores = Runtime.getRuntime().availableProcessors();
+        List<Integer> threads = new ArrayList<>();
+        for (int t = 1; t < 2 * cores; t *= 2) {
+            threads.add(t);
+        }
+        threads.add(2 * cores);
+
+        List<String[]> rows = new ArrayList<>();
+        Map<String, Double> singleThread = new HashMap<>();
+        for (int t : threads) {
+            Options options = new OptionsBuilder()
+                    .include(ThreadScalingBenchmark.class.getName() + ".observe")
+                    .param("distribution", "uniform")
+                    .threads(t)
+                    .jvmArgsAppend("-D" + LockProfiler.PROPERTY + "=true")
+                    .build();
+
+            for (RunResult result : new Runner(options).run()) {
+                String type = result.getParams().getParam("type");
+                String bufferSize = result.getParams().getParam("bufferSize");
+                double throughput = result.getPrimaryResult().getScore();
+
+                String key = type + "/" + bufferSize;
+                if (t == 1) {
+                    singleThread.put(key, throughput);
+                }
+                Double base = singleThread.get(key);
+                double efficiency = base == null ? Double.NaN : throughput / (base * t);
+
+                // EVENTS 为所有线程、所有测量迭代的总数，按同样的范围计算操作数和时间
+                double measuredNanos = (double) TimeUnit.SECONDS.toNanos(MEASUREMENT_SECONDS) * MEASUREMENT_ITERATIONS;
+                double operations = throughput * MEASUREMENT_SECONDS * MEASUREMENT_ITERATIONS;
+                double contended = score(result, "contended");
+                double blocked = score(result, "blockedNanos");
+                double failedTryLocks = score(result, "failedTryLocks");
+
+                rows.add(new String[] {
+                        type,
+                        bufferSize,
+                        String.valueOf(t),
+                        String.format(Locale.ROOT, "%.0f", throughput),
+                        String.format(Locale.ROOT, "%.0f", throughput / t),
+                        String.format(Locale.ROOT, "%.3f", efficiency),
+                        String.format(Locale.ROOT, "%.6f", contended / operations),
+                        String.format(Locale.ROOT, "%.6f", failedTryLocks / operations),
+                        String.format(Locale.ROOT, "%.4f", blocked / (measuredNanos * t))
+                });
+            }
+        }
+
+        String header = "type,buffer_size,threads,ops_per_s,ops_per_s_per_thread,scaling_efficiency,"
+                + "contended_per_op,failed_trylock_per_op,blocked_fraction";
+        print(header, rows, System.out);
+        if (args.length > 0) {
+            try (PrintStream out = new PrintStream(Files.newOutputStream(Paths.get(args[0])), false, "UTF-8")) {
+                print(header, rows, out);
+            }
+        }
+    }
+
+    private static double score(RunResult result, String label) {
+        Result<?> secondary = result.getSecondaryResults().get(label);
+        return secondary == null ? Double.NaN : secondary.getScore();
+    }
+
+    private static void print(String header, List<String[]> rows, PrintStream out) {
+        out.println(header);
+        for (String[] row : rows) {
+            out.println(String.join(",", row));
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package scyuan.quantiles;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * benchmark 使用的数据分布，数据在 @Setup 中预先生成，测量时只按下标读取
+ * 1. uniform: [0, 1e10) 均匀分布，和之前的 ThreadLocalRandom.nextDouble(1e10) 相同
+ * 2. lognormal: 中位数 1e6，sigma = 1，接近常见的延迟分布
+ * 3. pareto: xm = 1e5，alpha = 1.5 的长尾
+ * 4. bimodal: 90% 在 1e5 附近，10% 在 1e8 附近，例如缓存命中和未命中
+ * 5. sorted / reverse: 均匀分布排序后顺序或逆序输出
+ * 6. duplicates: 只有 50 个不同的值
+ * 所有值限制在 [1, 1e10]，HistogramQuantiles 不需要截断
+ *
+ * @author yuan.shichao
+ */
+public final class Workload {
+
+    public static final int SIZE = 1 << 20;
+
+    private static final double MAX = 10000000000d;
+
+    private Workload() {
+    }
+
+    /**
+     * 每个线程一份数据，读到末尾后从头开始
+     */
+    @State(Scope.Thread)
+    public static class Stream {
+        private static final AtomicInteger SEEDS = new AtomicInteger(0);
+
+        @Param({"uniform", "lognormal", "pareto", "bimodal", "sorted", "reverse", "duplicates"})
+        public String distribution;
+
+        private double[] values;
+
+        private int index = 0;
+
+        @Setup
+        public void setup() {
+            values = generate(distribution, SIZE, 42 + SEEDS.getAndIncrement());
+        }
+
+        public double next() {
+            double value = values[index];
+            index = (index + 1) & (SIZE - 1);
+            return value;
+        }
+    }
+
+    public static double[] generate(String distribution, int size, long seed) {
+        Random random = new Random(seed);
+        double[] values = new double[size];
+        switch (distribution) {
+            case "uniform":
+                for (int i = 0; i < size; i++) {
+                    values[i] = random.nextDouble() * MAX;
+                }
+                break;
+            case "lognormal":
+                for (int i = 0; i < size; i++) {
+                    values[i] = lognormal(random, 1000000, 1);
+                }
+                break;
+            case "pareto":
+                for (int i = 0; i < size; i++) {
+                    values[i] = 100000 / Math.pow(1 - random.nextDouble(), 1 / 1.5);
+                }
+                break;
+            case "bimodal":
+                for (int i = 0; i < size; i++) {
+                    values[i] = random.nextInt(10) == 0
+                            ? lognormal(random, 100000000, 0.3)
+                            : lognormal(random, 100000, 0.3);
+                }
+                break;
+            case "sorted":
+            case "reverse":
+                for (int i = 0; i < size; i++) {
+                    values[i] = random.nextDouble() * MAX;
+                }
+                Arrays.sort(values);
+                if (distribution.equals("reverse")) {
+                    for (int i = 0, j = size - 1; i < j; i++, j--) {
+                        double tmp = values[i];
+                        values[i] = values[j];
+                        values[j] = tmp;
+                    }
+                }
+                break;
+            case "duplicates":
+                for (int i = 0; i < size; i++) {
+                    values[i] = (1 + random.nextInt(50)) * 1000000d;
+                }
+                break;
+            default:
+                throw new IllegalArgumentException("unknown distribution: " + distribution);
+        }
+
+        for (int i = 0; i < size; i++) {
+            values[i] = Math.max(1, Math.min(MAX, values[i]));
+        }
+        return values;
+    }
+
+    private static double lognormal(Random random, double median, double sigma) {
+        return median * Math.exp(sigma * random.nextGaussian());
+    }
+
+}
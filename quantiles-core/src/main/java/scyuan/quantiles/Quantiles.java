@@ -14,6 +14,19 @@ public interface Quantiles {
      */
     void observe(double value);
 
+    /**
+     * 批量添加数据，实现可以原地排序 values[from, to)
+     *
+     * @param values
+     * @param from
+     * @param to
+     */
+    default void observeAll(double[] values, int from, int to) {
+        for (int i = from; i < to; i++) {
+            observe(values[i]);
+        }
+    }
+
     /**
      * 获取百分位数
      *
@@ -22,6 +35,31 @@ public interface Quantiles {
      */
     double get(double percentile);
 
+    /**
+     * 批量获取百分位数，只扫描一次采样数据
+     *
+     * @param percentiles (0 .. 1)
+     * @param out 结果按 percentiles 的顺序写入，长度不小于 percentiles.length
+     */
+    void getAll(double[] percentiles, double[] out);
+
+    /**
+     * 批量获取所有百分位的当前值
+     *
+     * @return 顺序与 monitored() 一致
+     */
+    default double[] snapshotMonitored() {
+        Collection<Double> monitored = monitored();
+        double[] percentiles = new double[monitored.size()];
+        int i = 0;
+        for (Double percentile : monitored) {
+            percentiles[i++] = percentile;
+        }
+
+        double[] out = new double[percentiles.length];
+        getAll(percentiles, out);
+        return out;
+    }
 
     /**
      * 清空缓存中的数据
@@ -47,5 +85,16 @@ public interface Quantiles {
      *
      * @return
      */
-    int getSize();
+    long getCount();
+
+    /**
+     * 获取数据总个数，超过 Integer.MAX_VALUE 时返回 Integer.MAX_VALUE
+     *
+     * @return
+     * @see #getCount()
+     */
+    default int getSize() {
+        long count = getCount();
+        return count > Integer.MAX_VALUE ? Integer.MAX_VALUE : (int) count;
+    }
 }
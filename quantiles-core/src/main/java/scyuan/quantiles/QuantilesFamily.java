@@ -0,0 +1,466 @@
+package scyuan.quantiles;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
+import java.util.function.Supplier;
+
+/**
+ * 线程安全，按一组 label 值管理同一指标的多个 Quantiles，例如 (endpoint, status, region)
+ * 1. 查找时直接用 label 值计算 hash 并在链表上逐个比较，不创建组合 key，命中时不分配对象，也不加锁；
+ *    labels(a)、labels(a, b)、labels(a, b, c) 连可变参数数组也不需要
+ * 2. 分为 16 个 segment，插入、淘汰和扩容在 segment 的锁下进行，链表节点不可变，删除和扩容时复制保留的节点，
+ *    读线程看到的总是完整的旧链表或新链表
+ * 3. 整个 family 最多保存 maxSeries 个序列，插入前先占用一个名额，满了以后在要插入的 segment 中淘汰，
+ *    这个 segment 为空时改为序列最多的 segment；先淘汰空闲超过 maxIdle 的序列，没有时淘汰最久未访问的 1/8，
+ *    一次排序的开销分摊到之后的多次插入。淘汰时不持有其他 segment 的锁，不会死锁
+ * 4. 淘汰只是把序列从 family 中移除，调用方持有的引用仍然可以使用，但不再能查到
+ *
+ * @author yuan.shichao
+ */
+public class QuantilesFamily {
+
+    private static final int SEGMENT_COUNT = 16;
+
+    /**
+     * 访问时间的精度，距离上次记录不超过这个时间时不写 lastAccessNanos，减少热点序列上的缓存行写入
+     */
+    private static final long ACCESS_GRANULARITY_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private final String[] labelNames;
+
+    private final Supplier<? extends Quantiles> factory;
+
+    private final int maxSeries;
+
+    private final long maxIdleNanos;
+
+    private final Segment[] segments;
+
+    /**
+     * 已保存和已占用名额正在插入的序列个数，不超过 maxSeries
+     */
+    private final AtomicInteger reserved = new AtomicInteger();
+
+    private final LongAdder idleEvictions = new LongAdder();
+
+    private final LongAdder sizeEvictions = new LongAdder();
+
+    /**
+     * @param labelNames label 名字，查找时 label 值的个数必须与之相同
+     * @param factory 查找不到时创建新的序列
+     * @param maxSeries 整个 family 最多保存的序列个数
+     * @param maxIdle 超过这个时间没有访问的序列优先淘汰，小于等于 0 时只按个数淘汰
+     */
+    public QuantilesFamily(String[] labelNames, Supplier<? extends Quantiles> factory,
+                           int maxSeries, long maxIdle, TimeUnit unit) {
+        if (labelNames.length == 0) {
+            throw new IllegalArgumentException("no label names");
+        }
+        if (maxSeries < 1) {
+            throw new IllegalArgumentException("maxSeries must be positive: " + maxSeries);
+        }
+        this.labelNames = labelNames.clone();
+        this.factory = factory;
+        this.maxSeries = maxSeries;
+        this.maxIdleNanos = maxIdle > 0 ? unit.toNanos(maxIdle) : Long.MAX_VALUE;
+
+        segments = new Segment[SEGMENT_COUNT];
+        for (int i = 0; i < SEGMENT_COUNT; i++) {
+            segments[i] = new Segment();
+        }
+    }
+
+    public Quantiles labels(String value) {
+        checkArity(1);
+        int hash = 31 + hashOf(value);
+        return segmentFor(hash).getOrCreate(hash, value, null, null, null);
+    }
+
+    public Quantiles labels(String value1, String value2) {
+        checkArity(2);
+        int hash = 31 * (31 + hashOf(value1)) + hashOf(value2);
+        return segmentFor(hash).getOrCreate(hash, value1, value2, null, null);
+    }
+
+    public Quantiles labels(String value1, String value2, String value3) {
+        checkArity(3);
+        int hash = 31 * (31 * (31 + hashOf(value1)) + hashOf(value2)) + hashOf(value3);
+        return segmentFor(hash).getOrCreate(hash, value1, value2, value3, null);
+    }
+
+    /**
+     * label 值按 labelNames 的顺序给出，values 不会被保存，调用方可以复用
+     */
+    public Quantiles labels(String... values) {
+        checkArity(values.length);
+        int hash = 1;
+        for (String value : values) {
+            hash = 31 * hash + hashOf(value);
+        }
+        return segmentFor(hash).getOrCreate(hash, null, null, null, values);
+    }
+
+    /**
+     * 立即淘汰所有空闲超过 maxIdle 的序列，通常由定时任务调用
+     *
+     * @return 淘汰的个数
+     */
+    public int evictIdle() {
+        if (maxIdleNanos == Long.MAX_VALUE) {
+            return 0;
+        }
+
+        long now = System.nanoTime();
+        int evicted = 0;
+        for (Segment segment : segments) {
+            segment.lock.lock();
+            try {
+                evicted += segment.evictIdle(now);
+            } finally {
+                segment.lock.unlock();
+            }
+        }
+        return evicted;
+    }
+
+    /**
+     * @param action 第一个参数为 label 值的副本，顺序与 labelNames 一致
+     */
+    public void forEach(BiConsumer<String[], Quantiles> action) {
+        for (Segment segment : segments) {
+            AtomicReferenceArray<Series> table = segment.table;
+            for (int i = 0; i < table.length(); i++) {
+                for (Series series = table.get(i); series != null; series = series.next) {
+                    action.accept(series.labels.clone(), series.quantiles);
+                }
+            }
+        }
+    }
+
+    public int size() {
+        int size = 0;
+        for (Segment segment : segments) {
+            size += segment.count;
+        }
+        return size;
+    }
+
+    public String[] getLabelNames() {
+        return labelNames.clone();
+    }
+
+    /**
+     * 因为空闲超时被淘汰的序列个数
+     */
+    public long getIdleEvictionCount() {
+        return idleEvictions.sum();
+    }
+
+    /**
+     * 因为超过 maxSeries 被淘汰的序列个数
+     */
+    public long getSizeEvictionCount() {
+        return sizeEvictions.sum();
+    }
+
+    public long getEvictionCount() {
+        return idleEvictions.sum() + sizeEvictions.sum();
+    }
+
+    private void checkArity(int arity) {
+        if (arity != labelNames.length) {
+            throw new IllegalArgumentException("expect " + labelNames.length + " label values: " + arity);
+        }
+    }
+
+    private static int hashOf(String value) {
+        if (value == null) {
+            throw new IllegalArgumentException("label value must not be null");
+        }
+        return value.hashCode();
+    }
+
+    /**
+     * 占用一个名额，满了以后淘汰，调用时不能持有任何 segment 的锁
+     */
+    private void reserve(Segment preferred) {
+        while (true) {
+            int current = reserved.get();
+            if (current < maxSeries) {
+                if (reserved.compareAndSet(current, current + 1)) {
+                    return;
+                }
+                continue;
+            }
+
+            Segment victim = preferred.count > 0 ? preferred : largestSegment();
+            int evicted;
+            victim.lock.lock();
+            try {
+                evicted = victim.evict(System.nanoTime());
+            } finally {
+                victim.lock.unlock();
+            }
+            if (evicted == 0) {
+                // 名额都被正在插入的线程占用，等它们插入完成
+                Thread.yield();
+            }
+        }
+    }
+
+    private Segment largestSegment() {
+        Segment largest = segments[0];
+        for (Segment segment : segments) {
+            if (segment.count > largest.count) {
+                largest = segment;
+            }
+        }
+        return largest;
+    }
+
+    private Segment segmentFor(int hash) {
+        return segments[spread(hash) >>> 28];
+    }
+
+    private static int spread(int hash) {
+        return (hash ^ (hash >>> 16)) * 0x9E3779B9;
+    }
+
+    /**
+     * values 不为 null 时比较 values，否则比较前 labels.length 个 value
+     */
+    private static boolean matches(String[] labels, String value1, String value2, String value3, String[] values) {
+        if (values != null) {
+            return Arrays.equals(labels, values);
+        }
+        return (labels.length < 3 || labels[2].equals(value3))
+                && (labels.length < 2 || labels[1].equals(value2))
+                && labels[0].equals(value1);
+    }
+
+    private static String[] labelsOf(int arity, String value1, String value2, String value3, String[] values) {
+        if (values != null) {
+            return values.clone();
+        }
+        switch (arity) {
+            case 3:
+                return new String[] {value1, value2, value3};
+            case 2:
+                return new String[] {value1, value2};
+            default:
+                return new String[] {value1};
+        }
+    }
+
+    /**
+     * 除了 lastAccessNanos 以外不可变，删除或扩容时复制
+     */
+    private static final class Series {
+        final String[] labels;
+        final int hash;
+        final Quantiles quantiles;
+        final Series next;
+
+        volatile long lastAccessNanos;
+
+        Series(String[] labels, int hash, Quantiles quantiles, Series next, long lastAccessNanos) {
+            this.labels = labels;
+            this.hash = hash;
+            this.quantiles = quantiles;
+            this.next = next;
+            this.lastAccessNanos = lastAccessNanos;
+        }
+
+        Series copy(Series next) {
+            return new Series(labels, hash, quantiles, next, lastAccessNanos);
+        }
+    }
+
+    private final class Segment {
+        final ReentrantLock lock = new ReentrantLock();
+
+        volatile AtomicReferenceArray<Series> table = new AtomicReferenceArray<>(16);
+
+        /**
+         * 只在 lock 下修改
+         */
+        volatile int count = 0;
+
+        /**
+         * 按访问时间淘汰时复用，只在 lock 下访问
+         */
+        long[] accessTimes = new long[0];
+
+        Quantiles getOrCreate(int hash, String value1, String value2, String value3, String[] values) {
+            Series series = find(hash, value1, value2, value3, values);
+            if (series != null) {
+                touch(series);
+                return series.quantiles;
+            }
+
+            reserve(this);
+            boolean inserted = false;
+            lock.lock();
+            try {
+                series = find(hash, value1, value2, value3, values);
+                if (series != null) {
+                    touch(series);
+                    return series.quantiles;
+                }
+
+                long now = System.nanoTime();
+                AtomicReferenceArray<Series> table = this.table;
+                if (count >= table.length() * 3 / 4) {
+                    table = resize(table);
+                }
+
+                String[] labels = labelsOf(labelNames.length, value1, value2, value3, values);
+                Quantiles quantiles = factory.get();
+                int index = spread(hash) & (table.length() - 1);
+                table.set(index, new Series(labels, hash, quantiles, table.get(index), now));
+                count++;
+                inserted = true;
+                return quantiles;
+            } finally {
+                lock.unlock();
+                if (!inserted) {
+                    reserved.decrementAndGet();
+                }
+            }
+        }
+
+        Series find(int hash, String value1, String value2, String value3, String[] values) {
+            AtomicReferenceArray<Series> table = this.table;
+            Series series = table.get(spread(hash) & (table.length() - 1));
+            while (series != null) {
+                if (series.hash == hash && matches(series.labels, value1, value2, value3, values)) {
+                    return series;
+                }
+                series = series.next;
+            }
+            return null;
+        }
+
+        void touch(Series series) {
+            long now = System.nanoTime();
+            if (now - series.lastAccessNanos > ACCESS_GRANULARITY_NANOS) {
+                series.lastAccessNanos = now;
+            }
+        }
+
+        AtomicReferenceArray<Series> resize(AtomicReferenceArray<Series> table) {
+            AtomicReferenceArray<Series> resized = new AtomicReferenceArray<>(table.length() * 2);
+            int mask = resized.length() - 1;
+            for (int i = 0; i < table.length(); i++) {
+                for (Series series = table.get(i); series != null; series = series.next) {
+                    int index = spread(series.hash) & mask;
+                    resized.set(index, series.copy(resized.get(index)));
+                }
+            }
+            this.table = resized;
+            return resized;
+        }
+
+        /**
+         * 在 lock 下调用，先淘汰空闲的序列，没有时淘汰最久未访问的 1/8
+         *
+         * @return 淘汰的个数，segment 为空时为 0
+         */
+        int evict(long now) {
+            if (count == 0) {
+                return 0;
+            }
+            int evicted = evictIdle(now);
+            if (evicted == 0) {
+                evicted = evictOldest(Math.max(1, count / 8));
+            }
+            return evicted;
+        }
+
+        /**
+         * 在 lock 下调用
+         */
+        int evictIdle(long now) {
+            if (maxIdleNanos == Long.MAX_VALUE) {
+                return 0;
+            }
+            int evicted = evictAccessedBefore(now - maxIdleNanos, count);
+            idleEvictions.add(evicted);
+            return evicted;
+        }
+
+        /**
+         * 在 lock 下调用，淘汰最久未访问的 n 个
+         */
+        int evictOldest(int n) {
+            AtomicReferenceArray<Series> table = this.table;
+            if (accessTimes.length < count) {
+                accessTimes = new long[table.length()];
+            }
+            int size = 0;
+            for (int i = 0; i < table.length(); i++) {
+                for (Series series = table.get(i); series != null; series = series.next) {
+                    accessTimes[size++] = series.lastAccessNanos;
+                }
+            }
+
+            // nanoTime 可能为负数，按与最新时间的差排序
+            long newest = accessTimes[0];
+            for (int i = 1; i < size; i++) {
+                if (accessTimes[i] - newest > 0) {
+                    newest = accessTimes[i];
+                }
+            }
+            for (int i = 0; i < size; i++) {
+                accessTimes[i] = newest - accessTimes[i];
+            }
+            Arrays.sort(accessTimes, 0, size);
+            long threshold = newest - accessTimes[size - n];
+
+            int evicted = evictAccessedBefore(threshold + 1, n);
+            sizeEvictions.add(evicted);
+            return evicted;
+        }
+
+        /**
+         * 在 lock 下调用，淘汰最多 limit 个 lastAccessNanos 早于 deadline 的序列
+         */
+        int evictAccessedBefore(long deadline, int limit) {
+            AtomicReferenceArray<Series> table = this.table;
+            int evicted = 0;
+            for (int i = 0; i < table.length() && evicted < limit; i++) {
+                Series head = table.get(i);
+                boolean expired = false;
+                for (Series series = head; series != null; series = series.next) {
+                    if (series.lastAccessNanos - deadline < 0) {
+                        expired = true;
+                        break;
+                    }
+                }
+                if (!expired) {
+                    continue;
+                }
+
+                // 保留的节点复制成新链表，读线程仍然可以遍历旧链表
+                Series kept = null;
+                for (Series series = head; series != null; series = series.next) {
+                    if (evicted < limit && series.lastAccessNanos - deadline < 0) {
+                        evicted++;
+                    } else {
+                        kept = series.copy(kept);
+                    }
+                }
+                table.set(i, kept);
+            }
+            count -= evicted;
+            reserved.addAndGet(-evicted);
+            return evicted;
+        }
+    }
+
+}
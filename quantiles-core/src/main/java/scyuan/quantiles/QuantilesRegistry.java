@@ -0,0 +1,262 @@
+package scyuan.quantiles;
+
+import scyuan.quantiles.ckms.CKMSQuantilesPrimitive;
+import scyuan.quantiles.ckms.DoubleBufferPool;
+import scyuan.quantiles.ckms.Quantile;
+import scyuan.quantiles.ckms.SnapshotPolicy;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+/**
+ * 线程安全，按名字管理大量 Quantiles
+ * 1. 序列按名字的 hash 分到 shard，每个 shard 一个 ConcurrentHashMap，命中时的查找不加锁也不分配对象
+ * 2. 所有序列共用一个调度线程，每个周期把各 shard 的 flushBuffer 交给一个小的 worker 线程池，
+ *    上一个周期还没有完成的 shard 跳过本周期
+ * 3. 默认的 CKMSQuantilesPrimitive 共用一个 DoubleBufferPool，flushBuffer 后归还 buffer
+ * 4. snapshot 按 shard 并行读取所有序列
+ *
+ * @author yuan.shichao
+ */
+public class QuantilesRegistry implements AutoCloseable {
+
+    private final ConcurrentHashMap<String, Quantiles>[] shards;
+
+    private final AtomicBoolean[] flushing;
+
+    private final int mask;
+
+    private final Function<String, ? extends Quantiles> factory;
+
+    private final DoubleBufferPool bufferPool;
+
+    private final ScheduledExecutorService scheduler;
+
+    private final ExecutorService workers;
+
+    /**
+     * 默认使用共享 buffer 池的 CKMSQuantilesPrimitive，worker 个数为 min(4, CPU 个数)
+     */
+    public QuantilesRegistry(Quantile[] quantiles, long flushInterval, TimeUnit unit) {
+        this(quantiles, flushInterval, unit, Math.min(4, Runtime.getRuntime().availableProcessors()));
+    }
+
+    public QuantilesRegistry(Quantile[] quantiles, long flushInterval, TimeUnit unit, int workerCount) {
+        this(new DoubleBufferPool(200, 1024), quantiles, flushInterval, unit, workerCount);
+    }
+
+    private QuantilesRegistry(DoubleBufferPool bufferPool, Quantile[] quantiles,
+                              long flushInterval, TimeUnit unit, int workerCount) {
+        this(name -> new CKMSQuantilesPrimitive(quantiles, SnapshotPolicy.locked(), bufferPool),
+                bufferPool, flushInterval, unit, workerCount);
+    }
+
+    /**
+     * @param factory {@link #getOrCreate(String)} 找不到时用名字创建新的序列
+     * @param flushInterval 小于等于 0 时不定时 flush
+     * @param workerCount flush 和 snapshot 使用的线程数
+     */
+    public QuantilesRegistry(Function<String, ? extends Quantiles> factory,
+                             long flushInterval, TimeUnit unit, int workerCount) {
+        this(factory, null, flushInterval, unit, workerCount);
+    }
+
+    private QuantilesRegistry(Function<String, ? extends Quantiles> factory, DoubleBufferPool bufferPool,
+                              long flushInterval, TimeUnit unit, int workerCount) {
+        if (workerCount < 1) {
+            throw new IllegalArgumentException("workerCount must be positive: " + workerCount);
+        }
+        this.factory = factory;
+        this.bufferPool = bufferPool;
+
+        int shardCount = Integer.highestOneBit(workerCount * 4 - 1) << 1;
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        ConcurrentHashMap<String, Quantiles>[] shards = new ConcurrentHashMap[shardCount];
+        this.shards = shards;
+        flushing = new AtomicBoolean[shardCount];
+        for (int i = 0; i < shardCount; i++) {
+            shards[i] = new ConcurrentHashMap<>();
+            flushing[i] = new AtomicBoolean();
+        }
+        mask = shardCount - 1;
+
+        workers = Executors.newFixedThreadPool(workerCount, new DaemonThreadFactory("quantiles-worker"));
+        scheduler = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("quantiles-flush"));
+        if (flushInterval > 0) {
+            scheduler.scheduleWithFixedDelay(this::scheduleFlush, flushInterval, flushInterval, unit);
+        }
+    }
+
+    /**
+     * 不存在时返回 null
+     */
+    public Quantiles get(String name) {
+        return shard(name).get(name);
+    }
+
+    /**
+     * 不存在时用 factory 创建，同一个名字只创建一次
+     */
+    public Quantiles getOrCreate(String name) {
+        ConcurrentHashMap<String, Quantiles> shard = shard(name);
+        Quantiles quantiles = shard.get(name);
+        if (quantiles != null) {
+            return quantiles;
+        }
+        return shard.computeIfAbsent(name, factory);
+    }
+
+    /**
+     * @throws IllegalArgumentException 名字已经存在
+     */
+    public void register(String name, Quantiles quantiles) {
+        if (shard(name).putIfAbsent(name, quantiles) != null) {
+            throw new IllegalArgumentException("duplicated name: " + name);
+        }
+    }
+
+    /**
+     * @return 被移除的序列，不存在时返回 null
+     */
+    public Quantiles remove(String name) {
+        return shard(name).remove(name);
+    }
+
+    public int size() {
+        int size = 0;
+        for (ConcurrentHashMap<String, Quantiles> shard : shards) {
+            size += shard.size();
+        }
+        return size;
+    }
+
+    public void forEach(BiConsumer<String, Quantiles> action) {
+        for (ConcurrentHashMap<String, Quantiles> shard : shards) {
+            shard.forEach(action);
+        }
+    }
+
+    /**
+     * 使用默认 factory 时为共享的 buffer 池，否则为 null
+     */
+    public DoubleBufferPool getBufferPool() {
+        return bufferPool;
+    }
+
+    /**
+     * 在 worker 线程上 flush 所有序列，等待完成
+     */
+    public void flushAll() {
+        Future<?>[] futures = new Future<?>[shards.length];
+        for (int i = 0; i < shards.length; i++) {
+            ConcurrentHashMap<String, Quantiles> shard = shards[i];
+            futures[i] = workers.submit(() -> shard.forEach((name, quantiles) -> quantiles.flushBuffer()));
+        }
+        await(futures);
+    }
+
+    /**
+     * 在 worker 线程上并行 flush 并读取所有序列的 snapshotMonitored
+     *
+     * @return 名字到当前值的映射，值的顺序与各序列的 monitored() 一致
+     */
+    public Map<String, double[]> snapshot() {
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        Future<Map<String, double[]>>[] futures = new Future[shards.length];
+        for (int i = 0; i < shards.length; i++) {
+            ConcurrentHashMap<String, Quantiles> shard = shards[i];
+            futures[i] = workers.submit(() -> {
+                Map<String, double[]> values = new HashMap<>(shard.size() * 2);
+                shard.forEach((name, quantiles) -> {
+                    quantiles.flushBuffer();
+                    values.put(name, quantiles.snapshotMonitored());
+                });
+                return values;
+            });
+        }
+
+        Map<String, double[]> snapshot = new HashMap<>(size() * 2);
+        for (Future<Map<String, double[]>> future : futures) {
+            snapshot.putAll(await(future));
+        }
+        return snapshot;
+    }
+
+    @Override
+    public void close() {
+        scheduler.shutdownNow();
+        workers.shutdown();
+    }
+
+    private ConcurrentHashMap<String, Quantiles> shard(String name) {
+        int h = name.hashCode();
+        return shards[(h ^ (h >>> 16)) & mask];
+    }
+
+    /**
+     * 调度线程只负责分发，flush 在 worker 线程上执行
+     */
+    private void scheduleFlush() {
+        for (int i = 0; i < shards.length; i++) {
+            if (!flushing[i].compareAndSet(false, true)) {
+                continue;
+            }
+
+            ConcurrentHashMap<String, Quantiles> shard = shards[i];
+            AtomicBoolean running = flushing[i];
+            workers.execute(() -> {
+                try {
+                    shard.forEach((name, quantiles) -> quantiles.flushBuffer());
+                } finally {
+                    running.set(false);
+                }
+            });
+        }
+    }
+
+    private static void await(Future<?>[] futures) {
+        for (Future<?> future : futures) {
+            await(future);
+        }
+    }
+
+    private static <T> T await(Future<T> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("interrupted", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    private static class DaemonThreadFactory implements ThreadFactory {
+        private final String prefix;
+        private final AtomicInteger index = new AtomicInteger();
+
+        DaemonThreadFactory(String prefix) {
+            this.prefix = prefix;
+        }
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, prefix + "-" + index.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+
+}
@@ -0,0 +1,30 @@
+package scyuan.quantiles.ckms;
+
+/**
+ * 批量查询时，按阈值 desired + f(desired)/2 从小到大处理各个百分位，这样只需要从头扫描一次采样数据
+ * 阈值不一定随百分位单调（f 的斜率可能小于 -2），所以按阈值排序而不是按百分位排序
+ *
+ * @author yuan.shichao
+ */
+public final class BatchQuery {
+
+    private BatchQuery() {
+    }
+
+    /**
+     * 返回按 thresholds 升序排列的下标，百分位个数很少，插入排序即可
+     * tdigest 和 gk 的批量查询也用它按百分位排序
+     */
+    public static int[] order(double[] thresholds) {
+        int[] order = new int[thresholds.length];
+        for (int i = 0; i < order.length; i++) {
+            int j = i;
+            while (j > 0 && thresholds[order[j-1]] > thresholds[i]) {
+                order[j] = order[j-1];
+                j--;
+            }
+            order[j] = i;
+        }
+        return order;
+    }
+}
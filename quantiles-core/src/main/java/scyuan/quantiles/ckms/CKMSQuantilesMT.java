@@ -15,7 +15,7 @@ public class CKMSQuantilesMT implements Quantiles {
     /**
      * Total number of items in stream.
      */
-    private int count = 0;
+    private long count = 0;
 
     /**
      * Current list of sampled items, maintained in sorted order with error bounds.
@@ -25,11 +25,11 @@ public class CKMSQuantilesMT implements Quantiles {
     /**
      * Buffers incoming items to be inserted in batch.
      */
-    private double[] buffer = new double[200];
+    private final double[] buffer;
 
     private int bufferCount = 0;
 
-    private final ReentrantLock lock = new ReentrantLock();
+    private final ReentrantLock lock = LockProfiler.newLock();
 
     /**
      * Array of Quantiles that we care about, along with desired error.
@@ -39,7 +39,18 @@ public class CKMSQuantilesMT implements Quantiles {
     private final Collection<Double> registered;
 
     public CKMSQuantilesMT(Quantile[] quantiles) {
+        this(quantiles, 200);
+    }
+
+    /**
+     * @param bufferSize 攒够多少个数据批量插入一次
+     */
+    public CKMSQuantilesMT(Quantile[] quantiles, int bufferSize) {
+        if (bufferSize < 1) {
+            throw new IllegalArgumentException("bufferSize must be positive: " + bufferSize);
+        }
         this.quantiles = quantiles;
+        this.buffer = new double[bufferSize];
 
         registered = new ArrayList<>();
         for (Quantile quantile : quantiles) {
@@ -82,8 +93,8 @@ public class CKMSQuantilesMT implements Quantiles {
                 return Double.NaN;
             }
 
-            int rankMin = 0;
-            int desired = (int) (q * count);
+            long rankMin = 0;
+            long desired = (long) (q * count);
 
             ListIterator<Item> it = sample.listIterator();
             Item prev, cur;
@@ -106,6 +117,44 @@ public class CKMSQuantilesMT implements Quantiles {
         }
     }
 
+    /**
+     * Get the estimated values at the specified quantiles, scanning the sample once.
+     *
+     * @param qs Queried quantiles, e.g. 0.50 or 0.99.
+     * @param out Estimated values, in the order of qs.
+     */
+    @Override
+    public void getAll(double[] qs, double[] out) {
+        lock.lock();
+        try {
+            if (sample.size() == 0) {
+                Arrays.fill(out, 0, qs.length, Double.NaN);
+                return;
+            }
+
+            double[] thresholds = new double[qs.length];
+            for (int k = 0; k < qs.length; k++) {
+                long desired = (long) (qs[k] * count);
+                thresholds[k] = desired + (allowableError(desired) / 2);
+            }
+
+            ListIterator<Item> it = sample.listIterator();
+            Item prev = it.next();
+            Item cur = it.hasNext() ? it.next() : null;
+            long rankMin = prev.g;
+            for (int k : BatchQuery.order(thresholds)) {
+                while (cur != null && rankMin + cur.g + cur.delta <= thresholds[k]) {
+                    prev = cur;
+                    rankMin += prev.g;
+                    cur = it.hasNext() ? it.next() : null;
+                }
+                out[k] = prev.value;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
     @Override
     public Collection<Double> monitored() {
         return registered;
@@ -133,7 +182,7 @@ public class CKMSQuantilesMT implements Quantiles {
     }
 
     @Override
-    public int getSize() {
+    public long getCount() {
         lock.lock();
         try {
             return count;
@@ -151,7 +200,7 @@ public class CKMSQuantilesMT implements Quantiles {
      *
      * @param rank the index in the list of samples
      */
-    private double allowableError(int rank) {
+    private double allowableError(long rank) {
         // NOTE: according to CKMS, this should be count, not size, but this leads
         // to error larger than the error bounds. Leaving it like this is
         // essentially a HACK, and blows up memory, but does "work".
@@ -206,11 +255,11 @@ public class CKMSQuantilesMT implements Quantiles {
 
             // We use different indexes for the edge comparisons, because of the above
             // if statement that adjusts the iterator
-            int delta;
+            long delta;
             if (it.previousIndex() == 0 || it.nextIndex() == sample.size()) {
                 delta = 0;
             } else {
-                delta = ((int) Math.floor(allowableError(it.nextIndex()))) - 1;
+                delta = ((long) Math.floor(allowableError(it.nextIndex()))) - 1;
             }
 
             Item newItem = new Item(v, 1, delta);
@@ -1,11 +1,10 @@
 package scyuan.quantiles.ckms;
 
-import org.joda.primitives.list.impl.ArrayDoubleList;
-import org.joda.primitives.list.impl.ArrayIntList;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import scyuan.quantiles.Quantiles;
 
+import java.nio.ByteBuffer;
 import java.util.*;
 import java.util.concurrent.PriorityBlockingQueue;
 import java.util.concurrent.locks.ReentrantLock;
@@ -14,42 +13,73 @@ import java.util.concurrent.locks.ReentrantLock;
  * 线程安全
  * 1. 使用primitive数据类型，减少内存占用
  * 2. 按照论文重新实现 "Effective Computation of Biased Quantiles over Data Streams" in ICDE 2005
+ * 3. 可选 SnapshotPolicy，读操作读取 compress 后发布的不可变快照，不与写操作争用锁
+ * 4. 可选 DoubleBufferPool，buffer 在 observe 时从池中取，flushBuffer 后归还，见 QuantilesRegistry
  *
  * @author yuan.shichao
  */
 public class CKMSQuantilesPrimitive implements Quantiles {
     private static final Logger LOGGER = LoggerFactory.getLogger(CKMSQuantilesPrimitive.class);
 
-    private int count = 0;
-
-    private final ArrayDoubleList valueSample;
-    private final ArrayIntList gSample;
-    private final ArrayIntList deltaSample;
+    private final CKMSSummary summary;
 
     private final Buffer buffer;
 
-    private final int bufferMaxSize = 200;
+    private final int bufferMaxSize;
 
-    private final ReentrantLock lock = new ReentrantLock();
+    private final ReentrantLock lock = LockProfiler.newLock();
 
     private final Quantile quantiles[];
 
     private final Collection<Double> registered;
 
+    private final SnapshotPolicy snapshotPolicy;
+
+    private volatile QuantilesSnapshot snapshot;
+
+    private volatile long snapshotNanos;
+
     public CKMSQuantilesPrimitive(Quantile[] quantiles) {
+        this(quantiles, SnapshotPolicy.locked());
+    }
+
+    public CKMSQuantilesPrimitive(Quantile[] quantiles, SnapshotPolicy snapshotPolicy) {
+        this(quantiles, snapshotPolicy, 200);
+    }
+
+    /**
+     * @param bufferSize 攒够多少个数据批量插入一次
+     */
+    public CKMSQuantilesPrimitive(Quantile[] quantiles, SnapshotPolicy snapshotPolicy, int bufferSize) {
+        this(quantiles, snapshotPolicy, bufferSize, null);
+    }
+
+    /**
+     * @param bufferPool 为 null 时使用自己的 buffer，否则 buffer 长度为 bufferPool.getBufferSize()
+     */
+    public CKMSQuantilesPrimitive(Quantile[] quantiles, SnapshotPolicy snapshotPolicy, DoubleBufferPool bufferPool) {
+        this(quantiles, snapshotPolicy, bufferPool == null ? 200 : bufferPool.getBufferSize(), bufferPool);
+    }
+
+    private CKMSQuantilesPrimitive(Quantile[] quantiles, SnapshotPolicy snapshotPolicy,
+                                   int bufferSize, DoubleBufferPool bufferPool) {
+        if (bufferSize < 1) {
+            throw new IllegalArgumentException("bufferSize must be positive: " + bufferSize);
+        }
         this.quantiles = quantiles;
+        this.snapshotPolicy = snapshotPolicy;
+        this.bufferMaxSize = bufferSize;
 
         registered = new ArrayList<>();
         for (Quantile quantile : quantiles) {
             registered.add(quantile.getQuantile());
         }
 
-        valueSample = new ArrayDoubleList(bufferMaxSize);
-        gSample = new ArrayIntList(bufferMaxSize);
-        deltaSample = new ArrayIntList(bufferMaxSize);
-
-        this.buffer = new Buffer(bufferMaxSize);
+        summary = new CKMSSummary(quantiles, bufferMaxSize);
+        snapshot = QuantilesSnapshot.empty(quantiles);
+        snapshotNanos = System.nanoTime();
 
+        this.buffer = bufferPool == null ? new Buffer(bufferMaxSize) : new Buffer(bufferPool);
     }
 
     @Override
@@ -65,169 +95,347 @@ public class CKMSQuantilesPrimitive implements Quantiles {
         }
     }
 
+    /**
+     * 先刷新 buffer，再把 values[from, to) 排序后一次归并进摘要并 compress，values 的顺序会被改变
+     */
     @Override
-    public double get(double q) {
+    public void observeAll(double[] values, int from, int to) {
         lock.lock();
         try {
-            if (valueSample.size() == 0) {
-                return Double.NaN;
+            if (buffer.count() > 0) {
+                insertBatch(buffer);
             }
+            summary.insertBatch(values, from, to);
+            compress();
+        } finally {
+            lock.unlock();
+        }
+    }
 
-            int rankMin = 0;
-            int desired = (int) (q * count);
+    /**
+     * 拿不到锁时直接返回 false，由调用方决定换一个 cell 或者等待，见 CKMSQuantilesStriped
+     */
+    boolean tryObserve(double value) {
+        if (!lock.tryLock()) {
+            return false;
+        }
 
-            if (valueSample.size() == 1) {
-                return valueSample.getDouble(0);
+        try {
+            if (buffer.addAndCheckFull(value)) {
+                insertBatch(buffer);
+                compress();
             }
+        } finally {
+            lock.unlock();
+        }
+        return true;
+    }
 
-            for (int i = 1; i < valueSample.size(); i++) {
-                rankMin += gSample.getInt(i-1);
-                if (rankMin + gSample.getInt(i) + deltaSample.getInt(i) > desired + (allowableError(desired)/2)) {
-                    return valueSample.getDouble(i-1);
-                }
+    /**
+     * 刷新 buffer 后把当前摘要复制到 target
+     */
+    void copySummaryTo(CKMSSummary target) {
+        lock.lock();
+        try {
+            if (buffer.count() > 0) {
+                insertBatch(buffer);
+                compress();
             }
-
-            return valueSample.getDouble(valueSample.size()-1);
+            target.copyFrom(summary);
         } finally {
             lock.unlock();
         }
     }
 
-    @Override
-    public Collection<Double> monitored() {
-        return registered;
-    }
+    /**
+     * 把 other 的摘要合并进来，other 本身不变
+     *
+     * 两边的元组按值归并，g 不变，rank 下界直接相加；每个元组的 delta 加上另一个摘要中后继元组的 rank 不确定度，
+     * 之后按当前对象的 quantiles 重新 compress。
+     * 若输入分别满足误差 ε1·n1 和 ε2·n2，合并结果对同一目标的 rank 误差不超过 ε1·n1 + ε2·n2，
+     * 当两边目标相同时即 ε·(n1 + n2)，和直接观察所有数据的误差界相同；之后的 observe 和 compress 不会超出这个界。
+     * 多次两两合并时误差按同样的方式累加，所以合并多个摘要时优先使用 {@link #merge(Collection)}
+     *
+     * @param other CKMSQuantilesPrimitive、CKMSQuantilesThreadLocal、CKMSQuantilesStriped 或 CKMSQuantilesQueue
+     */
+    public void merge(Quantiles other) {
+        if (other == this) {
+            throw new IllegalArgumentException("can not merge a summary into itself");
+        }
+
+        CKMSSummary copy = new CKMSSummary(quantiles, bufferMaxSize);
+        copySummary(other, copy);
 
-    @Override
-    public void flushBuffer() {
         lock.lock();
         try {
             if (buffer.count() > 0) {
                 insertBatch(buffer);
-                compress();
             }
+            summary.mergeFrom(new CKMSSummary[] {summary, copy}, 2);
+            compress();
         } finally {
             lock.unlock();
         }
     }
 
-    @Override
-    public int getSampleSize() {
+    /**
+     * 一次 k 路归并多个摘要，误差见 {@link #merge(Quantiles)}，结果使用第一个摘要的 quantiles
+     *
+     * @param summaries CKMSQuantilesPrimitive、CKMSQuantilesThreadLocal、CKMSQuantilesStriped 或 CKMSQuantilesQueue
+     * @return 新的 CKMSQuantilesPrimitive，输入本身不变
+     */
+    public static CKMSQuantilesPrimitive merge(Collection<? extends Quantiles> summaries) {
+        if (summaries.isEmpty()) {
+            throw new IllegalArgumentException("no summaries to merge");
+        }
+
+        CKMSSummary[] copies = new CKMSSummary[summaries.size()];
+        Quantile[] quantiles = null;
+        int i = 0;
+        for (Quantiles summary : summaries) {
+            if (quantiles == null) {
+                quantiles = quantilesOf(summary);
+            }
+            copies[i] = new CKMSSummary(quantiles, 200);
+            copySummary(summary, copies[i]);
+            i++;
+        }
+
+        CKMSQuantilesPrimitive merged = new CKMSQuantilesPrimitive(quantiles);
+        merged.lock.lock();
+        try {
+            merged.summary.mergeFrom(copies, copies.length);
+            merged.compress();
+        } finally {
+            merged.lock.unlock();
+        }
+        return merged;
+    }
+
+    /**
+     * 丢弃所有数据，保留已分配的数组，见 TimeWindowQuantiles
+     */
+    void reset() {
         lock.lock();
         try {
-            return valueSample.size();
+            buffer.clear();
+            buffer.release();
+            summary.clear();
+            if (snapshotPolicy.isSnapshot()) {
+                snapshot = summary.snapshot();
+                snapshotNanos = System.nanoTime();
+            }
         } finally {
             lock.unlock();
         }
     }
 
-    @Override
-    public int getSize() {
+    int maxEncodedSize() {
         lock.lock();
         try {
-            return count;
+            return CKMSSummaryCodec.maxEncodedSize(quantiles.length, summary.size() + buffer.count());
         } finally {
             lock.unlock();
         }
     }
 
-    private double allowableError(int rank) {
-        int size = count;
-        double minError = size + 1;
-
-        for (Quantile q : quantiles) {
-            double error;
-            if (rank <= q.quantile * size) {
-                error = q.u * (size - rank);
-            } else {
-                error = q.v * rank;
-            }
-            if (error < minError) {
-                minError = error;
+    void encodeTo(ByteBuffer out, CKMSSummaryCodec.ValueEncoding encoding) {
+        lock.lock();
+        try {
+            if (buffer.count() > 0) {
+                insertBatch(buffer);
+                compress();
             }
+            CKMSSummaryCodec.write(quantiles, summary, out, encoding);
+        } finally {
+            lock.unlock();
         }
+    }
 
-        return minError;
+    void decodeFrom(ByteBuffer in, CKMSSummaryCodec.ValueEncoding encoding, int size, long count) {
+        lock.lock();
+        try {
+            CKMSSummaryCodec.read(in, encoding, size, count, summary);
+        } finally {
+            lock.unlock();
+        }
     }
 
-    private void insertBatch(Buffer buffer) {
-        double[] data = buffer.data();
-        int size = buffer.count();
-        Arrays.sort(data, 0, size);
+    private static void copySummary(Quantiles source, CKMSSummary target) {
+        if (source instanceof CKMSQuantilesPrimitive) {
+            ((CKMSQuantilesPrimitive) source).copySummaryTo(target);
+        } else if (source instanceof CKMSQuantilesThreadLocal) {
+            ((CKMSQuantilesThreadLocal) source).copySummaryTo(target);
+        } else if (source instanceof CKMSQuantilesStriped) {
+            ((CKMSQuantilesStriped) source).copySummaryTo(target);
+        } else if (source instanceof CKMSQuantilesQueue) {
+            ((CKMSQuantilesQueue) source).copySummaryTo(target);
+        } else {
+            throw new IllegalArgumentException("can not merge " + source.getClass().getName());
+        }
+    }
 
-        int start = 0;
-        if (valueSample.size() == 0) {
-            valueSample.add(data[0]);
-            gSample.add(1);
-            deltaSample.add(0);
+    private static Quantile[] quantilesOf(Quantiles source) {
+        if (source instanceof CKMSQuantilesPrimitive) {
+            return ((CKMSQuantilesPrimitive) source).getQuantiles();
+        } else if (source instanceof CKMSQuantilesThreadLocal) {
+            return ((CKMSQuantilesThreadLocal) source).getQuantiles();
+        } else if (source instanceof CKMSQuantilesStriped) {
+            return ((CKMSQuantilesStriped) source).getQuantiles();
+        } else if (source instanceof CKMSQuantilesQueue) {
+            return ((CKMSQuantilesQueue) source).getQuantiles();
+        }
+        throw new IllegalArgumentException("can not merge " + source.getClass().getName());
+    }
 
-            start++;
-            count++;
+    @Override
+    public double get(double q) {
+        if (snapshotPolicy.isSnapshot()) {
+            return readSnapshot().get(q);
         }
 
-        int sampleIndex = 0;
-        int curMinRank = 0;
-        for (int i = start; i < size; i++) {
-            double v = data[i];
+        lock.lock();
+        try {
+            return summary.get(q);
+        } finally {
+            lock.unlock();
+        }
+    }
 
-            while (sampleIndex < valueSample.size() && valueSample.getDouble(sampleIndex) < v) {
-                curMinRank += gSample.getInt(sampleIndex);
-                sampleIndex++;
-            }
+    @Override
+    public void getAll(double[] qs, double[] out) {
+        if (snapshotPolicy.isSnapshot()) {
+            readSnapshot().getAll(qs, out);
+            return;
+        }
 
-            int delta;
-            if (sampleIndex == 0 || sampleIndex == valueSample.size()) {
-                delta = 0;
-            } else {
-                int ri = curMinRank - gSample.getInt(sampleIndex-1);
-                delta = ((int) Math.floor(allowableError(ri))) - 1;
+        lock.lock();
+        try {
+            summary.getAll(qs, out);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public Collection<Double> monitored() {
+        return registered;
+    }
+
+    @Override
+    public void flushBuffer() {
+        lock.lock();
+        try {
+            if (buffer.count() > 0) {
+                insertBatch(buffer);
+                compress();
             }
+            buffer.release();
+        } finally {
+            lock.unlock();
+        }
+    }
 
-            valueSample.add(sampleIndex, v);
-            gSample.add(sampleIndex, 1);
-            deltaSample.add(sampleIndex, delta);
+    @Override
+    public int getSampleSize() {
+        if (snapshotPolicy.isSnapshot()) {
+            return readSnapshot().getSampleSize();
+        }
 
-            count++;
+        lock.lock();
+        try {
+            return summary.size();
+        } finally {
+            lock.unlock();
         }
+    }
+
+    @Override
+    public long getCount() {
+        if (snapshotPolicy.isSnapshot()) {
+            return readSnapshot().getCount();
+        }
+
+        lock.lock();
+        try {
+            return summary.count();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void insertBatch(Buffer buffer) {
+        summary.insertBatch(buffer.data(), 0, buffer.count());
         buffer.clear();
     }
 
     private void compress() {
-        if (valueSample.size() < 2) {
-            return;
+        summary.compress();
+        if (snapshotPolicy.isSnapshot()) {
+            snapshot = summary.snapshot();
+            snapshotNanos = System.nanoTime();
         }
+    }
 
-        int curMinRank = count;
-        for (int i = valueSample.size() - 1; i > 0; i--) {
-            int preG = gSample.getInt(i-1);
-            int g = gSample.getInt(i);
-            int delta = deltaSample.getInt(i);
+    /**
+     * 快照方式下返回最近发布的快照，否则加锁复制当前摘要
+     */
+    public QuantilesSnapshot snapshot() {
+        if (snapshotPolicy.isSnapshot()) {
+            return readSnapshot();
+        }
 
-            curMinRank -= g;
-            if (preG + g + delta <= allowableError(curMinRank-preG)) {
-                valueSample.removeDoubleAt(i-1);
-                gSample.removeIntAt(i-1);
-                deltaSample.removeIntAt(i-1);
+        lock.lock();
+        try {
+            return summary.snapshot();
+        } finally {
+            lock.unlock();
+        }
+    }
 
-                gSample.set(i-1, preG + g);
-                curMinRank += g;
+    private QuantilesSnapshot readSnapshot() {
+        if (snapshotPolicy.isStale(snapshotNanos) && lock.tryLock()) {
+            try {
+                if (buffer.count() > 0) {
+                    insertBatch(buffer);
+                    compress();
+                } else {
+                    snapshotNanos = System.nanoTime();
+                }
+            } finally {
+                lock.unlock();
             }
         }
+        return snapshot;
     }
 
     private static class Buffer {
-        private final double[] data;
+        private final DoubleBufferPool pool;
+        private double[] data;
         private final int size;
 
         private int count;
 
         public Buffer(int size) {
+            this.pool = null;
             this.size = size;
             this.data = new double[size];
             count = 0;
         }
 
+        /**
+         * data 在第一次 add 时从 pool 中取
+         */
+        public Buffer(DoubleBufferPool pool) {
+            this.pool = pool;
+            this.size = pool.getBufferSize();
+            count = 0;
+        }
+
         public boolean addAndCheckFull(double v) {
+            if (data == null) {
+                data = pool.acquire();
+            }
             if (count == size) {
                 LOGGER.warn("buffer is already full");
                 return true;
@@ -251,6 +459,16 @@ public class CKMSQuantilesPrimitive implements Quantiles {
             count = 0;
         }
 
+        /**
+         * buffer 为空时把 data 归还给 pool
+         */
+        public void release() {
+            if (pool != null && data != null && count == 0) {
+                pool.release(data);
+                data = null;
+            }
+        }
+
     }
 
     public Quantile[] getQuantiles() {
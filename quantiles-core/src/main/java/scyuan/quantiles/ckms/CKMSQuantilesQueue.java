@@ -2,35 +2,37 @@ package scyuan.quantiles.ckms;
 
 import scyuan.quantiles.Quantiles;
 
-import java.util.*;
-import java.util.concurrent.PriorityBlockingQueue;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * 线程安全
- * 1. 使用PriorityBlockingQueue作为缓冲队列
+ * 1. 使用有界的 double 环形队列作为缓冲队列，observe 无锁、不装箱
+ * 2. 队列中的数据超过 bufferMaxSize 时，tryLock 成功的线程批量取出归并到摘要，摘要使用 CKMSSummary
+ * 3. 队列满时按 OverflowPolicy 丢弃或等待
  *
  * @author yuan.shichao
  */
 public class CKMSQuantilesQueue implements Quantiles {
-    /**
-     * Total number of items in stream.
-     */
-    private int count = 0;
 
-    /**
-     * Current list of sampled items, maintained in sorted order with error bounds.
-     */
-    private final LinkedList<Item> sample;
+    private final CKMSSummary summary;
+
+    private final DoubleRingBuffer bufferQueue;
+
+    private final int bufferMaxSize;
 
     /**
-     * Buffers incoming items to be inserted in batch.
+     * 从队列取出数据的目标，只在锁内访问
      */
-    private final PriorityBlockingQueue<Double> bufferQueue = new PriorityBlockingQueue<Double>();
+    private final double[] batch;
 
-    private final int bufferMaxSize = 200;
+    private final OverflowPolicy overflowPolicy;
 
-    private final ReentrantLock lock = new ReentrantLock();
+    private final AtomicLong dropped = new AtomicLong();
+
+    private final ReentrantLock lock = LockProfiler.newLock();
 
     /**
      * Array of Quantiles that we care about, along with desired error.
@@ -40,14 +42,36 @@ public class CKMSQuantilesQueue implements Quantiles {
     private final Collection<Double> registered;
 
     public CKMSQuantilesQueue(Quantile[] quantiles) {
+        this(quantiles, 1024, OverflowPolicy.BLOCK);
+    }
+
+    /**
+     * @param capacity 缓冲队列容量，向上取整到 2 的幂
+     */
+    public CKMSQuantilesQueue(Quantile[] quantiles, int capacity, OverflowPolicy overflowPolicy) {
+        this(quantiles, capacity, overflowPolicy, 200);
+    }
+
+    /**
+     * @param capacity 缓冲队列容量，向上取整到 2 的幂，不小于 bufferSize
+     * @param bufferSize 队列中超过多少个数据时批量归并一次
+     */
+    public CKMSQuantilesQueue(Quantile[] quantiles, int capacity, OverflowPolicy overflowPolicy, int bufferSize) {
+        if (bufferSize < 1) {
+            throw new IllegalArgumentException("bufferSize must be positive: " + bufferSize);
+        }
         this.quantiles = quantiles;
+        this.overflowPolicy = overflowPolicy;
+        this.bufferMaxSize = bufferSize;
+        this.batch = new double[bufferSize];
 
         registered = new ArrayList<>();
         for (Quantile quantile : quantiles) {
             registered.add(quantile.getQuantile());
         }
 
-        this.sample = new LinkedList<>();
+        bufferQueue = new DoubleRingBuffer(Math.max(capacity, bufferMaxSize));
+        summary = new CKMSSummary(quantiles, bufferMaxSize);
     }
 
     /**
@@ -55,17 +79,25 @@ public class CKMSQuantilesQueue implements Quantiles {
      */
     @Override
     public void observe(double value) {
-        bufferQueue.add(value);
-        if (bufferQueue.size() >= bufferMaxSize) {
-            if (lock.tryLock()) {
-                try {
-                    insertBatch();
-                    compress();
-                } finally {
-                    lock.unlock();
-                }
+        if (bufferQueue.offer(value)) {
+            if (bufferQueue.size() >= bufferMaxSize) {
+                tryDrain();
             }
+            return;
+        }
+
+        if (overflowPolicy == OverflowPolicy.DROP) {
+            if (!(tryDrain() && bufferQueue.offer(value))) {
+                dropped.incrementAndGet();
+            }
+            return;
         }
+
+        do {
+            if (!tryDrain()) {
+                Thread.yield();
+            }
+        } while (!bufferQueue.offer(value));
     }
 
     /**
@@ -78,29 +110,17 @@ public class CKMSQuantilesQueue implements Quantiles {
     public double get(double q) {
         lock.lock();
         try {
-            if (sample.size() == 0) {
-                return Double.NaN;
-            }
-
-            int rankMin = 0;
-            int desired = (int) (q * count);
-
-            ListIterator<Item> it = sample.listIterator();
-            Item prev, cur;
-            cur = it.next();
-            while (it.hasNext()) {
-                prev = cur;
-                cur = it.next();
-
-                rankMin += prev.g;
-
-                if (rankMin + cur.g + cur.delta > desired + (allowableError(desired) / 2)) {
-                    return prev.value;
-                }
-            }
+            return summary.get(q);
+        } finally {
+            lock.unlock();
+        }
+    }
 
-            // edge case of wanting max value
-            return sample.getLast().value;
+    @Override
+    public void getAll(double[] qs, double[] out) {
+        lock.lock();
+        try {
+            summary.getAll(qs, out);
         } finally {
             lock.unlock();
         }
@@ -115,8 +135,7 @@ public class CKMSQuantilesQueue implements Quantiles {
     public void flushBuffer() {
         lock.lock();
         try {
-            insertBatch();
-            compress();
+            drainLocked();
         } finally {
             lock.unlock();
         }
@@ -126,127 +145,67 @@ public class CKMSQuantilesQueue implements Quantiles {
     public int getSampleSize() {
         lock.lock();
         try {
-            return sample.size();
+            return summary.size();
         } finally {
             lock.unlock();
         }
     }
 
     @Override
-    public int getSize() {
+    public long getCount() {
         lock.lock();
         try {
-            return count;
+            return summary.count();
         } finally {
             lock.unlock();
         }
     }
 
     /**
-     * Specifies the allowable error for this rank, depending on which quantiles
-     * are being targeted.
-     *
-     * This is the f(r_i, n) function from the CKMS paper. It's basically how wide
-     * the range of this rank can be.
-     *
-     * @param rank the index in the list of samples
+     * 队列满时丢弃的数据个数，只在 OverflowPolicy.DROP 下增加
      */
-    private double allowableError(int rank) {
-        // NOTE: according to CKMS, this should be count, not size, but this leads
-        // to error larger than the error bounds. Leaving it like this is
-        // essentially a HACK, and blows up memory, but does "work".
-        //int size = count;
-        int size = sample.size();
-        double minError = size + 1;
-
-        for (Quantile q : quantiles) {
-            double error;
-            if (rank <= q.quantile * size) {
-                error = q.u * (size - rank);
-            } else {
-                error = q.v * rank;
-            }
-            if (error < minError) {
-                minError = error;
-            }
-        }
-
-        return minError;
+    public long getDropped() {
+        return dropped.get();
     }
 
-    private void insertBatch() {
-        List<Double> bufferList = new ArrayList<>();
-        bufferQueue.drainTo(bufferList);
-        if (bufferList.isEmpty()) {
-            return;
+    /**
+     * 取出队列中的数据后把当前摘要复制到 target
+     */
+    void copySummaryTo(CKMSSummary target) {
+        lock.lock();
+        try {
+            drainLocked();
+            target.copyFrom(summary);
+        } finally {
+            lock.unlock();
         }
+    }
 
-        // Base case: no samples
-        int start = 0;
-        if (sample.size() == 0) {
-            Item newItem = new Item(bufferList.get(0), 1, 0);
-            sample.add(newItem);
-            start++;
-            count++;
+    private boolean tryDrain() {
+        if (!lock.tryLock()) {
+            return false;
         }
-
-        ListIterator<Item> it = sample.listIterator();
-        Item item = it.next();
-
-        for (int i = start; i < bufferList.size(); i++) {
-            double v = bufferList.get(i);
-            while (it.nextIndex() < sample.size() && item.value < v) {
-                item = it.next();
-            }
-
-            // If we found that bigger item, back up so we insert ourselves before it
-            if (item.value > v) {
-                it.previous();
-            }
-
-            // We use different indexes for the edge comparisons, because of the above
-            // if statement that adjusts the iterator
-            int delta;
-            if (it.previousIndex() == 0 || it.nextIndex() == sample.size()) {
-                delta = 0;
-            } else {
-                delta = ((int) Math.floor(allowableError(it.nextIndex()))) - 1;
-            }
-
-            Item newItem = new Item(v, 1, delta);
-            it.add(newItem);
-            count++;
-            item = newItem;
+        try {
+            drainLocked();
+            return true;
+        } finally {
+            lock.unlock();
         }
     }
 
     /**
-     * Try to remove extraneous items from the set of sampled items. This checks
-     * if an item is unnecessary based on the desired error bounds, and merges it
-     * with the adjacent item if it is.
+     * 最多取出开始时队列中的数据，生产者认领序号后尚未发布的槽位留到下一次
      */
-    private void compress() {
-        if (sample.size() < 2) {
-            return;
-        }
-
-        ListIterator<Item> it = sample.listIterator();
-        Item prev;
-        Item next = it.next();
-
-        while (it.hasNext()) {
-            prev = next;
-            next = it.next();
-
-            if (prev.g + next.g + next.delta <= allowableError(it.previousIndex())) {
-                next.g += prev.g;
-                // Remove prev. it.remove() kills the last thing returned.
-                it.previous();
-                it.previous();
-                it.remove();
-                // it.next() is now equal to next, skip it back forward again
-                it.next();
+    private void drainLocked() {
+        int remaining = bufferQueue.size();
+        while (remaining > 0) {
+            int n = bufferQueue.drainTo(batch, Math.min(remaining, batch.length));
+            if (n == 0) {
+                return;
             }
+            summary.insertBatch(batch, 0, n);
+            summary.compress();
+            remaining -= n;
         }
     }
 
@@ -0,0 +1,320 @@
+package scyuan.quantiles.ckms;
+
+import scyuan.quantiles.Quantiles;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 线程安全
+ * 1. 参考 LongAdder，开始只有一个 CKMSQuantilesPrimitive cell，写线程 tryLock 失败时扩容 cell 数组，最多为 CPU 个数
+ * 2. 写线程按 probe 选择 cell，冲突时重新 hash，cell 数组到达上限后才阻塞等待
+ * 3. 查询时再把所有 cell 的摘要 k 路归并，误差为各 cell 误差之和，见 CKMSSummary.mergeFrom
+ * 4. 默认的 locked 方式每次查询依次锁住每个 cell 复制摘要；可选 SnapshotPolicy，cell 在 compress 后发布不可变快照，
+ *    查询只比较每个 cell 当前的快照，都没有变化时直接返回缓存的归并结果，否则在 queryLock 下用快照重新归并，不获取 cell 的锁
+ *
+ * @author yuan.shichao
+ */
+public class CKMSQuantilesStriped implements Quantiles {
+
+    private static final ThreadLocal<int[]> PROBE = ThreadLocal.withInitial(
+            () -> new int[] {ThreadLocalRandom.current().nextInt() | 1});
+
+    private volatile CKMSQuantilesPrimitive[] cells;
+
+    private final int maxCells;
+
+    private final AtomicBoolean growing = new AtomicBoolean(false);
+
+    private final ReentrantLock queryLock = new ReentrantLock();
+
+    /**
+     * 以下字段只在 queryLock 下访问
+     */
+    private CKMSSummary[] cellSummaries;
+    private final CKMSSummary merged;
+
+    private final Quantile quantiles[];
+
+    private final Collection<Double> registered;
+
+    private final SnapshotPolicy snapshotPolicy;
+
+    /**
+     * 快照方式下最近一次归并的结果，以及归并时每个 cell 的快照
+     */
+    private volatile MergedSnapshot mergedSnapshot;
+
+    public CKMSQuantilesStriped(Quantile[] quantiles) {
+        this(quantiles, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @param maxCells cell 个数上限，向上取整到 2 的幂
+     */
+    public CKMSQuantilesStriped(Quantile[] quantiles, int maxCells) {
+        this(quantiles, maxCells, SnapshotPolicy.locked());
+    }
+
+    /**
+     * @param maxCells cell 个数上限，向上取整到 2 的幂
+     * @param snapshotPolicy 每个 cell 使用同样的方式
+     */
+    public CKMSQuantilesStriped(Quantile[] quantiles, int maxCells, SnapshotPolicy snapshotPolicy) {
+        if (maxCells < 1) {
+            throw new IllegalArgumentException("maxCells must be positive: " + maxCells);
+        }
+        this.quantiles = quantiles;
+        this.maxCells = powerOfTwo(maxCells);
+        this.snapshotPolicy = snapshotPolicy;
+
+        registered = new ArrayList<>();
+        for (Quantile quantile : quantiles) {
+            registered.add(quantile.getQuantile());
+        }
+
+        cells = new CKMSQuantilesPrimitive[] {new CKMSQuantilesPrimitive(quantiles, snapshotPolicy)};
+        cellSummaries = new CKMSSummary[0];
+        merged = new CKMSSummary(quantiles, 200);
+        mergedSnapshot = new MergedSnapshot(new QuantilesSnapshot[0], QuantilesSnapshot.empty(quantiles));
+    }
+
+    @Override
+    public void observe(double value) {
+        int[] probe = PROBE.get();
+        while (true) {
+            CKMSQuantilesPrimitive[] cells = this.cells;
+            CKMSQuantilesPrimitive cell = cells[probe[0] & (cells.length - 1)];
+            if (cell.tryObserve(value)) {
+                return;
+            }
+
+            probe[0] = rehash(probe[0]);
+            if (cells.length >= maxCells) {
+                cells[probe[0] & (cells.length - 1)].observe(value);
+                return;
+            }
+            grow(cells);
+        }
+    }
+
+    @Override
+    public double get(double q) {
+        if (snapshotPolicy.isSnapshot()) {
+            return readSnapshot().get(q);
+        }
+
+        queryLock.lock();
+        try {
+            mergeCells();
+            return merged.get(q);
+        } finally {
+            queryLock.unlock();
+        }
+    }
+
+    @Override
+    public void getAll(double[] qs, double[] out) {
+        if (snapshotPolicy.isSnapshot()) {
+            readSnapshot().getAll(qs, out);
+            return;
+        }
+
+        queryLock.lock();
+        try {
+            mergeCells();
+            merged.getAll(qs, out);
+        } finally {
+            queryLock.unlock();
+        }
+    }
+
+    @Override
+    public Collection<Double> monitored() {
+        return registered;
+    }
+
+    @Override
+    public void flushBuffer() {
+        for (CKMSQuantilesPrimitive cell : cells) {
+            cell.flushBuffer();
+        }
+    }
+
+    /**
+     * 所有 cell 的采样数据个数之和
+     */
+    @Override
+    public int getSampleSize() {
+        int sampleSize = 0;
+        for (CKMSQuantilesPrimitive cell : cells) {
+            sampleSize += cell.getSampleSize();
+        }
+        return sampleSize;
+    }
+
+    @Override
+    public long getCount() {
+        long count = 0;
+        for (CKMSQuantilesPrimitive cell : cells) {
+            count += cell.getCount();
+        }
+        return count;
+    }
+
+    public int getCellCount() {
+        return cells.length;
+    }
+
+    private void mergeCells() {
+        CKMSQuantilesPrimitive[] cells = this.cells;
+        ensureCellSummaries(cells.length);
+        for (int i = 0; i < cells.length; i++) {
+            cells[i].copySummaryTo(cellSummaries[i]);
+        }
+        merged.mergeFrom(cellSummaries, cells.length);
+        merged.compress();
+    }
+
+    private void ensureCellSummaries(int length) {
+        if (cellSummaries.length < length) {
+            int current = cellSummaries.length;
+            cellSummaries = Arrays.copyOf(cellSummaries, length);
+            for (int i = current; i < length; i++) {
+                cellSummaries[i] = new CKMSSummary(quantiles, 200);
+            }
+        }
+    }
+
+    /**
+     * 快照方式下返回所有 cell 快照归并后的快照，否则加锁归并所有 cell
+     */
+    public QuantilesSnapshot snapshot() {
+        if (snapshotPolicy.isSnapshot()) {
+            return readSnapshot();
+        }
+
+        queryLock.lock();
+        try {
+            mergeCells();
+            return merged.snapshot();
+        } finally {
+            queryLock.unlock();
+        }
+    }
+
+    /**
+     * 所有 cell 的快照都没有变化时直接返回缓存，cell 数组扩容后也会重新归并
+     */
+    private QuantilesSnapshot readSnapshot() {
+        MergedSnapshot current = mergedSnapshot;
+        if (current.isCurrent(cells)) {
+            return current.snapshot;
+        }
+
+        queryLock.lock();
+        try {
+            CKMSQuantilesPrimitive[] cells = this.cells;
+            current = mergedSnapshot;
+            if (current.isCurrent(cells)) {
+                return current.snapshot;
+            }
+
+            ensureCellSummaries(cells.length);
+            QuantilesSnapshot[] parts = new QuantilesSnapshot[cells.length];
+            for (int i = 0; i < cells.length; i++) {
+                parts[i] = cells[i].snapshot();
+                cellSummaries[i].copyFrom(parts[i]);
+            }
+            merged.mergeFrom(cellSummaries, cells.length);
+            merged.compress();
+
+            current = new MergedSnapshot(parts, merged.snapshot());
+            mergedSnapshot = current;
+            return current.snapshot;
+        } finally {
+            queryLock.unlock();
+        }
+    }
+
+    /**
+     * 把所有 cell 归并后的摘要复制到 target
+     */
+    void copySummaryTo(CKMSSummary target) {
+        queryLock.lock();
+        try {
+            mergeCells();
+            target.copyFrom(merged);
+        } finally {
+            queryLock.unlock();
+        }
+    }
+
+    private void grow(CKMSQuantilesPrimitive[] current) {
+        if (!growing.compareAndSet(false, true)) {
+            return;
+        }
+
+        try {
+            if (cells == current) {
+                CKMSQuantilesPrimitive[] next = Arrays.copyOf(current, current.length << 1);
+                for (int i = current.length; i < next.length; i++) {
+                    next[i] = new CKMSQuantilesPrimitive(quantiles, snapshotPolicy);
+                }
+                cells = next;
+            }
+        } finally {
+            growing.set(false);
+        }
+    }
+
+    private static int rehash(int probe) {
+        probe ^= probe << 13;
+        probe ^= probe >>> 17;
+        probe ^= probe << 5;
+        return probe;
+    }
+
+    private static int powerOfTwo(int n) {
+        int cells = 1;
+        while (cells < n) {
+            cells <<= 1;
+        }
+        return cells;
+    }
+
+    public Quantile[] getQuantiles() {
+        return quantiles;
+    }
+
+    private static final class MergedSnapshot {
+        private final QuantilesSnapshot[] parts;
+
+        private final QuantilesSnapshot snapshot;
+
+        MergedSnapshot(QuantilesSnapshot[] parts, QuantilesSnapshot snapshot) {
+            this.parts = parts;
+            this.snapshot = snapshot;
+        }
+
+        /**
+         * cell 每次 compress 都会发布新的快照对象，按引用比较即可
+         */
+        boolean isCurrent(CKMSQuantilesPrimitive[] cells) {
+            if (parts.length != cells.length) {
+                return false;
+            }
+            for (int i = 0; i < cells.length; i++) {
+                if (parts[i] != cells[i].snapshot()) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+}
@@ -1,76 +1,130 @@
 package scyuan.quantiles.ckms;
 
-import org.joda.primitives.list.impl.ArrayDoubleList;
-import org.joda.primitives.list.impl.ArrayIntList;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
 import scyuan.quantiles.Quantiles;
 
+import java.lang.ref.WeakReference;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Collection;
-import java.util.List;
-import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * 线程安全
  * 1. 使用primitive数据类型，减少内存占用
  * 2. 按照论文重新实现 "Effective Computation of Biased Quantiles over Data Streams" in ICDE 2005
- * 3. 使用ThreadLocal buffer，减少锁争用
+ * 3. 每个线程两个 chunk 交替写入，写入不加锁；写满后换上另一个 chunk，把写满的 chunk 交给 tryLock 成功的线程归并，
+ *    只要另一个 chunk 已经归并完，写线程就不会阻塞在摘要的锁上
+ *    每个线程只分配两个 chunk，归并跟不上写入、两个 chunk 都在等待归并时，写线程加锁自己归并后继续写入，不丢弃数据，
+ *    内存占用不会随写入速度增长
+ * 4. 所有线程的 buffer 登记在弱引用线程的 registry 中，flush 时读取每个 buffer 中尚未归并的部分，线程结束后移出 registry
+ * 5. 可选 SnapshotPolicy，读操作读取 compress 后发布的不可变快照，不与写操作争用锁
  *
  * @author yuan.shichao
  */
 public class CKMSQuantilesThreadLocal implements Quantiles {
-    private static final Logger LOGGER = LoggerFactory.getLogger(CKMSQuantilesThreadLocal.class);
 
-    private int count = 0;
+    private final CKMSSummary summary;
 
-    private final ArrayDoubleList valueSample;
-    private final ArrayIntList gSample;
-    private final ArrayIntList deltaSample;
+    private final int bufferMaxSize;
 
-    private final int bufferMaxSize = 32;
+    private final Queue<Buffer> registry = new ConcurrentLinkedQueue<>();
 
-    private final List<Buffer> bufferList = new CopyOnWriteArrayList<>();
+    private final AtomicInteger allocatedChunks = new AtomicInteger();
 
-    private ThreadLocal<Buffer> threadLocalBuffer = ThreadLocal.withInitial(() -> {
-        Buffer buffer = new Buffer(bufferMaxSize);
-        bufferList.add(buffer);
-        return buffer;
-    });
+    private final ThreadLocal<Buffer> threadLocalBuffer = ThreadLocal.withInitial(this::registerBuffer);
 
-    private final ReentrantLock lock = new ReentrantLock();
+    /**
+     * 写满等待归并的 chunk，通过 Chunk.next 串成栈
+     */
+    private final AtomicReference<Chunk> fullChunks = new AtomicReference<>();
+
+    private final ReentrantLock lock = LockProfiler.newLock();
 
     private final Quantile quantiles[];
 
     private final Collection<Double> registered;
 
+    private final SnapshotPolicy snapshotPolicy;
+
+    private volatile QuantilesSnapshot snapshot;
+
+    private volatile long snapshotNanos;
+
     public CKMSQuantilesThreadLocal(Quantile[] quantiles) {
+        this(quantiles, SnapshotPolicy.locked());
+    }
+
+    public CKMSQuantilesThreadLocal(Quantile[] quantiles, SnapshotPolicy snapshotPolicy) {
+        this(quantiles, snapshotPolicy, 32);
+    }
+
+    /**
+     * @param bufferSize 每个线程一个 chunk 的长度
+     */
+    public CKMSQuantilesThreadLocal(Quantile[] quantiles, SnapshotPolicy snapshotPolicy, int bufferSize) {
+        if (bufferSize < 1) {
+            throw new IllegalArgumentException("bufferSize must be positive: " + bufferSize);
+        }
         this.quantiles = quantiles;
+        this.snapshotPolicy = snapshotPolicy;
+        this.bufferMaxSize = bufferSize;
 
         registered = new ArrayList<>();
         for (Quantile quantile : quantiles) {
             registered.add(quantile.getQuantile());
         }
 
-        valueSample = new ArrayDoubleList(bufferMaxSize);
-        gSample = new ArrayIntList(bufferMaxSize);
-        deltaSample = new ArrayIntList(bufferMaxSize);
+        summary = new CKMSSummary(quantiles, bufferMaxSize);
+        snapshot = QuantilesSnapshot.empty(quantiles);
+        snapshotNanos = System.nanoTime();
+    }
+
+    private Buffer registerBuffer() {
+        Buffer buffer = new Buffer(Thread.currentThread(), bufferMaxSize, allocatedChunks);
+        registry.add(buffer);
+        return buffer;
     }
 
     @Override
     public void observe(double value) {
         Buffer buffer = threadLocalBuffer.get();
-        if (buffer.addAndCheckFull(value)) {
+        Chunk chunk = buffer.active;
+        if (chunk == null) {
+            chunk = awaitSpare(buffer);
+        }
+        if (chunk.add(value)) {
+            buffer.active = buffer.takeSpare();
+            push(chunk);
+            drain();
+        }
+    }
+
+    /**
+     * 两个 chunk 都在等待归并，先 tryLock 自己归并；拿不到锁说明归并跟不上写入，阻塞在锁上归并，
+     * 拿到锁时之前的归并都已完成，两个 chunk 一定已经放回 spare
+     */
+    private Chunk awaitSpare(Buffer buffer) {
+        Chunk chunk = buffer.takeSpare();
+        if (chunk == null) {
+            drain();
+            chunk = buffer.takeSpare();
+        }
+        while (chunk == null) {
             lock.lock();
             try {
-                insertBatch(buffer);
+                drainLocked();
                 compress();
             } finally {
                 lock.unlock();
             }
+            chunk = buffer.takeSpare();
         }
+        buffer.active = chunk;
+        return chunk;
     }
 
     /**
@@ -81,27 +135,28 @@ public class CKMSQuantilesThreadLocal implements Quantiles {
      */
     @Override
     public double get(double q) {
+        if (snapshotPolicy.isSnapshot()) {
+            return readSnapshot().get(q);
+        }
+
         lock.lock();
         try {
-            if (valueSample.size() == 0) {
-                return Double.NaN;
-            }
-
-            int rankMin = 0;
-            int desired = (int) (q * count);
-
-            if (valueSample.size() == 1) {
-                return valueSample.getDouble(0);
-            }
+            return summary.get(q);
+        } finally {
+            lock.unlock();
+        }
+    }
 
-            for (int i = 1; i < valueSample.size(); i++) {
-                rankMin += gSample.getInt(i-1);
-                if (rankMin + gSample.getInt(i) + deltaSample.getInt(i) > desired + (allowableError(desired)/2)) {
-                    return valueSample.getDouble(i-1);
-                }
-            }
+    @Override
+    public void getAll(double[] qs, double[] out) {
+        if (snapshotPolicy.isSnapshot()) {
+            readSnapshot().getAll(qs, out);
+            return;
+        }
 
-            return valueSample.getDouble(valueSample.size()-1);
+        lock.lock();
+        try {
+            summary.getAll(qs, out);
         } finally {
             lock.unlock();
         }
@@ -116,178 +171,263 @@ public class CKMSQuantilesThreadLocal implements Quantiles {
     public void flushBuffer() {
         lock.lock();
         try {
-            for (Buffer buffer : bufferList) {
-                if (buffer.count() > 0) {
-                    insertBatch(buffer);
-                }
-            }
-            bufferList.clear();
-            compress();
+            flushLocked();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 刷新所有 buffer 后把当前摘要复制到 target
+     */
+    void copySummaryTo(CKMSSummary target) {
+        lock.lock();
+        try {
+            flushLocked();
+            target.copyFrom(summary);
         } finally {
             lock.unlock();
         }
     }
 
+    private void flushLocked() {
+        drainLocked();
+        for (Iterator<Buffer> it = registry.iterator(); it.hasNext(); ) {
+            Buffer buffer = it.next();
+            Chunk chunk = buffer.active;
+            if (chunk != null) {
+                insertBatch(chunk, chunk.written.get());
+            }
+            if (buffer.get() == null) {
+                it.remove();
+            }
+        }
+        compress();
+    }
+
+    private boolean hasBufferedData() {
+        if (fullChunks.get() != null) {
+            return true;
+        }
+        for (Buffer buffer : registry) {
+            Chunk chunk = buffer.active;
+            if (chunk != null && chunk.written.get() > chunk.consumed) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     @Override
     public int getSampleSize() {
+        if (snapshotPolicy.isSnapshot()) {
+            return readSnapshot().getSampleSize();
+        }
+
         lock.lock();
         try {
-            return valueSample.size();
+            return summary.size();
         } finally {
             lock.unlock();
         }
     }
 
     @Override
-    public int getSize() {
+    public long getCount() {
+        if (snapshotPolicy.isSnapshot()) {
+            return readSnapshot().getCount();
+        }
+
         lock.lock();
         try {
-            return count;
+            return summary.count();
         } finally {
             lock.unlock();
         }
     }
 
-    private double allowableError(int rank) {
-        int size = count;
-        double minError = size + 1;
 
-        for (Quantile q : quantiles) {
-            double error;
-            if (rank <= q.quantile * size) {
-                error = q.u * (size - rank);
-            } else {
-                error = q.v * rank;
-            }
-            if (error < minError) {
-                minError = error;
+    /**
+     * 所有线程分配过的 chunk 个数，每个线程两个
+     */
+    public int getAllocatedChunks() {
+        return allocatedChunks.get();
+    }
+
+    private void push(Chunk chunk) {
+        Chunk head;
+        do {
+            head = fullChunks.get();
+            chunk.next = head;
+        } while (!fullChunks.compareAndSet(head, chunk));
+    }
+
+    /**
+     * 拿不到锁说明有其他线程正在归并或读取，直接返回，chunk 留给之后拿到锁的线程
+     */
+    private void drain() {
+        while (fullChunks.get() != null && lock.tryLock()) {
+            try {
+                drainLocked();
+                compress();
+            } finally {
+                lock.unlock();
             }
         }
-
-        return minError;
     }
 
-    private void insertBatch(Buffer buffer) {
-        double[] data = buffer.data();
-        int size = buffer.count();
-        Arrays.sort(data, 0, size);
+    private void drainLocked() {
+        Chunk chunk = fullChunks.getAndSet(null);
+        while (chunk != null) {
+            Chunk next = chunk.next;
+            insertBatch(chunk, chunk.data.length);
+            chunk.recycle();
+            chunk = next;
+        }
+    }
 
-        int start = 0;
-        if (valueSample.size() == 0) {
-            valueSample.add(data[0]);
-            gSample.add(1);
-            deltaSample.add(0);
+    /**
+     * 归并 chunk.data[consumed, end)，写线程只会写 end 之后的位置
+     */
+    private void insertBatch(Chunk chunk, int end) {
+        summary.insertBatch(chunk.data, chunk.consumed, end);
+        chunk.consumed = end;
+    }
 
-            start++;
-            count++;
+    private void compress() {
+        summary.compress();
+        if (snapshotPolicy.isSnapshot()) {
+            snapshot = summary.snapshot();
+            snapshotNanos = System.nanoTime();
         }
+    }
 
-        int sampleIndex = 0;
-        int curMinRank = 0;
-        for (int i = start; i < size; i++) {
-            double v = data[i];
+    /**
+     * 快照方式下返回最近发布的快照，否则加锁复制当前摘要
+     */
+    public QuantilesSnapshot snapshot() {
+        if (snapshotPolicy.isSnapshot()) {
+            return readSnapshot();
+        }
 
-            while (sampleIndex < valueSample.size() && valueSample.getDouble(sampleIndex) < v) {
-                curMinRank += gSample.getInt(sampleIndex);
-                sampleIndex++;
-            }
+        lock.lock();
+        try {
+            return summary.snapshot();
+        } finally {
+            lock.unlock();
+        }
+    }
 
-            int delta;
-            if (sampleIndex == 0 || sampleIndex == valueSample.size()) {
-                delta = 0;
-            } else {
-                int ri = curMinRank - gSample.getInt(sampleIndex-1);
-                delta = ((int) Math.floor(allowableError(ri))) - 1;
+    private QuantilesSnapshot readSnapshot() {
+        if (snapshotPolicy.isStale(snapshotNanos) && lock.tryLock()) {
+            try {
+                if (hasBufferedData()) {
+                    flushLocked();
+                } else {
+                    snapshotNanos = System.nanoTime();
+                }
+            } finally {
+                lock.unlock();
             }
-
-            valueSample.add(sampleIndex, v);
-            gSample.add(sampleIndex, 1);
-            deltaSample.add(sampleIndex, delta);
-
-            count++;
         }
-        buffer.clear();
+        return snapshot;
     }
 
-    private void compress() {
-        if (valueSample.size() < 2) {
-            return;
+    /**
+     * 一个线程的写入状态，弱引用所属线程
+     */
+    private static final class Buffer extends WeakReference<Thread> {
+        /**
+         * 只由所属线程修改，两个 chunk 都在等待归并时为 null
+         */
+        private volatile Chunk active;
+
+        /**
+         * 归并完成的 chunk 通过 Chunk.next 串成栈放回这里，供所属线程下一次交换；
+         * 只在锁内 push，只由所属线程 pop，不会有 ABA
+         */
+        private final AtomicReference<Chunk> spare = new AtomicReference<>();
+
+        Buffer(Thread owner, int size, AtomicInteger allocatedChunks) {
+            super(owner);
+            this.active = new Chunk(this, size);
+            this.spare.set(new Chunk(this, size));
+            allocatedChunks.addAndGet(2);
         }
 
-        int curMinRank = count;
-        for (int i = valueSample.size() - 1; i > 0; i--) {
-            int preG = gSample.getInt(i-1);
-            int g = gSample.getInt(i);
-            int delta = deltaSample.getInt(i);
-
-            curMinRank -= g;
-            if (preG + g + delta <= allowableError(curMinRank-preG)) {
-                valueSample.removeDoubleAt(i-1);
-                gSample.removeIntAt(i-1);
-                deltaSample.removeIntAt(i-1);
+        /**
+         * 另一个 chunk 还未归并完时返回 null，不分配新的 chunk
+         */
+        Chunk takeSpare() {
+            Chunk chunk;
+            do {
+                chunk = spare.get();
+                if (chunk == null) {
+                    return null;
+                }
+            } while (!spare.compareAndSet(chunk, chunk.next));
+            chunk.next = null;
+            return chunk;
+        }
 
-                gSample.set(i-1, preG + g);
-                curMinRank += g;
-            }
+        /**
+         * 锁内调用
+         */
+        void release(Chunk chunk) {
+            Chunk head;
+            do {
+                head = spare.get();
+                chunk.next = head;
+            } while (!spare.compareAndSet(head, chunk));
         }
+
     }
 
-    private static class Buffer {
-        private final double[] data;
-        private final int size;
+    private static final class Chunk {
+        private final Buffer owner;
 
-        private final ReentrantLock lock = new ReentrantLock();
+        private final double[] data;
 
+        /**
+         * 写线程自己的写入位置
+         */
         private int count;
 
-        public Buffer(int size) {
-            this.size = size;
-            this.data = new double[size];
-            count = 0;
-        }
-
-        public boolean addAndCheckFull(double v) {
-            lock.lock();
-            try {
-                if (count == size) {
-                    LOGGER.warn("buffer is already full");
-                    return true;
-                }
+        /**
+         * 对其他线程发布的写入位置，data[0, written) 可见
+         */
+        private final AtomicInteger written = new AtomicInteger();
 
-                data[count] = v;
-                count++;
+        /**
+         * 已归并的位置，只在锁内访问
+         */
+        private int consumed;
 
-                return count == size;
-            } finally {
-                lock.unlock();
-            }
-        }
+        private Chunk next;
 
-        public int count() {
-            lock.lock();
-            try {
-                return count;
-            } finally {
-                lock.unlock();
-            }
+        Chunk(Buffer owner, int size) {
+            this.owner = owner;
+            this.data = new double[size];
         }
 
-        public double[] data() {
-            lock.lock();
-            try {
-                return data;
-            } finally {
-                lock.unlock();
-            }
+        /**
+         * 只由所属线程调用，返回是否写满
+         */
+        boolean add(double v) {
+            data[count] = v;
+            count++;
+            written.lazySet(count);
+            return count == data.length;
         }
 
-        public void clear() {
-            lock.lock();
-            try {
-                count = 0;
-            } finally {
-                lock.unlock();
-            }
+        /**
+         * 锁内调用，chunk 已经不在所属线程的 active 上
+         */
+        void recycle() {
+            count = 0;
+            consumed = 0;
+            written.set(0);
+            owner.release(this);
         }
 
     }
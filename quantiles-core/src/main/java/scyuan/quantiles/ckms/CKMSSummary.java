@@ -0,0 +1,485 @@
+package scyuan.quantiles.ckms;
+
+import java.util.Arrays;
+
+/**
+ * CKMSQuantilesPrimitive 和 CKMSQuantilesThreadLocal 共用的摘要，非线程安全，由调用方加锁
+ * 1. value/g/delta 分别保存在 primitive 数组中，g/delta 使用 RankArray，超出 int 范围时加宽为 long
+ * 2. insertBatch 将排序后的 buffer 与现有摘要归并写入备用数组，完成后交换，避免逐个插入的数组移动
+ * 3. compress 单次扫描决定合并，读写游标原地压缩三个数组，O(n) 且不分配内存
+ * 4. insertBatch 和 compress 通过 ErrorEnvelope 查表计算 f(r, n)，查询仍然逐个 quantile 精确计算
+ *
+ * @author yuan.shichao
+ */
+final class CKMSSummary {
+
+    private final Quantile quantiles[];
+
+    private final ErrorEnvelope envelope;
+
+    private long count = 0;
+
+    private int size = 0;
+
+    private double[] values;
+    private RankArray gs;
+    private RankArray deltas;
+
+    /**
+     * insertBatch 的归并目标，与上面三个数组交替使用
+     */
+    private double[] mergeValues;
+    private RankArray mergeGs;
+    private RankArray mergeDeltas;
+
+    /**
+     * mergeFrom 的 k 路归并状态，按 k 扩容后复用，查询时不分配内存
+     */
+    private int[] mergeHeads = new int[0];
+    private int[] mergeHeap = new int[0];
+
+    CKMSSummary(Quantile[] quantiles, int initialCapacity) {
+        this.quantiles = quantiles;
+        this.envelope = new ErrorEnvelope(quantiles);
+
+        values = new double[initialCapacity];
+        gs = new RankArray(initialCapacity);
+        deltas = new RankArray(initialCapacity);
+
+        mergeValues = new double[initialCapacity];
+        mergeGs = new RankArray(initialCapacity);
+        mergeDeltas = new RankArray(initialCapacity);
+    }
+
+    long count() {
+        return count;
+    }
+
+    int size() {
+        return size;
+    }
+
+    double get(double q) {
+        if (size == 0) {
+            return Double.NaN;
+        }
+
+        if (size == 1) {
+            return values[0];
+        }
+
+        long rankMin = 0;
+        long desired = (long) (q * count);
+        double threshold = desired + (allowableError(desired) / 2);
+
+        for (int i = 1; i < size; i++) {
+            rankMin += gs.get(i-1);
+            if (rankMin + gs.get(i) + deltas.get(i) > threshold) {
+                return values[i-1];
+            }
+        }
+
+        return values[size-1];
+    }
+
+    /**
+     * 见 BatchQuery，结果与逐个调用 get 相同
+     */
+    void getAll(double[] qs, double[] out) {
+        if (size == 0) {
+            Arrays.fill(out, 0, qs.length, Double.NaN);
+            return;
+        }
+
+        double[] thresholds = new double[qs.length];
+        for (int k = 0; k < qs.length; k++) {
+            long desired = (long) (qs[k] * count);
+            thresholds[k] = desired + (allowableError(desired) / 2);
+        }
+
+        int i = 1;
+        long rankMin = gs.get(0);
+        for (int k : BatchQuery.order(thresholds)) {
+            while (i < size && rankMin + gs.get(i) + deltas.get(i) <= thresholds[k]) {
+                rankMin += gs.get(i);
+                i++;
+            }
+            out[k] = values[i-1];
+        }
+    }
+
+    private double allowableError(long rank) {
+        return allowableError(quantiles, count, rank);
+    }
+
+    static double allowableError(Quantile[] quantiles, long count, long rank) {
+        long size = count;
+        double minError = size + 1;
+
+        for (Quantile q : quantiles) {
+            double error;
+            if (rank <= q.quantile * size) {
+                error = q.u * (size - rank);
+            } else {
+                error = q.v * rank;
+            }
+            if (error < minError) {
+                minError = error;
+            }
+        }
+
+        return minError;
+    }
+
+    /**
+     * 复制当前摘要，生成不可变快照
+     */
+    QuantilesSnapshot snapshot() {
+        double[] snapshotValues = Arrays.copyOf(values, size);
+        long[] ranks = new long[size];
+        long[] upperRanks = new long[size];
+
+        long rank = 0;
+        long upperRank = 0;
+        for (int i = 0; i < size; i++) {
+            rank += gs.get(i);
+            ranks[i] = rank;
+            if (i > 0) {
+                upperRank = Math.max(upperRank, rank + deltas.get(i));
+                upperRanks[i] = upperRank;
+            }
+        }
+
+        return new QuantilesSnapshot(quantiles, count, size, snapshotValues, ranks, upperRanks);
+    }
+
+    /**
+     * 排序 data[from, to)，与现有摘要归并一次写入备用数组
+     */
+    void insertBatch(double[] data, int from, int to) {
+        if (from >= to) {
+            return;
+        }
+
+        Arrays.sort(data, from, to);
+        ensureMergeCapacity(size + to - from);
+        envelope.update(count);
+
+        double[] outValues = mergeValues;
+        RankArray outGs = mergeGs;
+        RankArray outDeltas = mergeDeltas;
+
+        int sampleIndex = 0;
+        int out = 0;
+        long curMinRank = 0;
+        for (int i = from; i < to; i++) {
+            double v = data[i];
+
+            while (sampleIndex < size && values[sampleIndex] < v) {
+                outValues[out] = values[sampleIndex];
+                outGs.set(out, gs.get(sampleIndex));
+                outDeltas.set(out, deltas.get(sampleIndex));
+                curMinRank += gs.get(sampleIndex);
+                sampleIndex++;
+                out++;
+            }
+
+            long delta;
+            if (out == 0 || sampleIndex == size) {
+                delta = 0;
+            } else {
+                long ri = curMinRank - outGs.get(out-1);
+                delta = ((long) Math.floor(envelope.at(ri))) - 1;
+            }
+
+            outValues[out] = v;
+            outGs.set(out, 1);
+            outDeltas.set(out, delta);
+            curMinRank++;
+            out++;
+
+            count++;
+        }
+
+        int remaining = size - sampleIndex;
+        System.arraycopy(values, sampleIndex, outValues, out, remaining);
+        RankArray.copy(gs, sampleIndex, outGs, out, remaining);
+        RankArray.copy(deltas, sampleIndex, outDeltas, out, remaining);
+
+        mergeValues = values;
+        mergeGs = gs;
+        mergeDeltas = deltas;
+
+        values = outValues;
+        gs = outGs;
+        deltas = outDeltas;
+        size = out + remaining;
+    }
+
+    /**
+     * 从后向前扫描一次：read 游标逐个检查前驱元组，能合并就把它的 g 累加到当前保留的元组，
+     * 否则把当前元组写到 write 游标处；结束后保留的元组位于 [write, size)，整体搬到数组开头
+     */
+    void compress() {
+        if (size < 2) {
+            return;
+        }
+
+        envelope.update(count);
+
+        int write = size - 1;
+        double value = values[write];
+        long g = gs.get(write);
+        long delta = deltas.get(write);
+
+        long curMinRank = count - g;
+        for (int read = size - 2; read >= 0; read--) {
+            long preG = gs.get(read);
+
+            curMinRank -= preG;
+            if (preG + g + delta <= envelope.at(curMinRank)) {
+                g += preG;
+            } else {
+                values[write] = value;
+                gs.set(write, g);
+                deltas.set(write, delta);
+                write--;
+
+                value = values[read];
+                g = preG;
+                delta = deltas.get(read);
+            }
+        }
+
+        values[write] = value;
+        gs.set(write, g);
+        deltas.set(write, delta);
+
+        int newSize = size - write;
+        if (write > 0) {
+            System.arraycopy(values, write, values, 0, newSize);
+            RankArray.copy(gs, write, gs, 0, newSize);
+            RankArray.copy(deltas, write, deltas, 0, newSize);
+        }
+        size = newSize;
+    }
+
+    /**
+     * 清空摘要，保留已分配的数组
+     */
+    void clear() {
+        size = 0;
+        count = 0;
+    }
+
+    double value(int index) {
+        return values[index];
+    }
+
+    long g(int index) {
+        return gs.get(index);
+    }
+
+    long delta(int index) {
+        return deltas.get(index);
+    }
+
+    /**
+     * 在末尾追加一个元组，调用方保证 value 不小于当前最后一个值，见 CKMSSummaryCodec
+     */
+    void append(double value, long g, long delta) {
+        reserve(size + 1);
+        values[size] = value;
+        gs.set(size, g);
+        deltas.set(size, delta);
+        size++;
+        count += g;
+    }
+
+    /**
+     * 保留现有内容扩容
+     */
+    void reserve(int capacity) {
+        if (values.length >= capacity) {
+            return;
+        }
+
+        int newCapacity = Math.max(capacity, values.length * 2);
+        values = Arrays.copyOf(values, newCapacity);
+        gs.grow(newCapacity);
+        deltas.grow(newCapacity);
+    }
+
+    /**
+     * 复制 other 的内容，覆盖当前摘要
+     */
+    void copyFrom(CKMSSummary other) {
+        ensureCapacity(other.size);
+        System.arraycopy(other.values, 0, values, 0, other.size);
+        RankArray.copy(other.gs, 0, gs, 0, other.size);
+        RankArray.copy(other.deltas, 0, deltas, 0, other.size);
+        size = other.size;
+        count = other.count;
+    }
+
+    /**
+     * 从快照还原摘要，delta 取快照的 rank 上界与下界之差，查询结果与快照相同
+     */
+    void copyFrom(QuantilesSnapshot snapshot) {
+        int snapshotSize = snapshot.getSampleSize();
+        ensureCapacity(snapshotSize);
+        long previousRank = 0;
+        for (int i = 0; i < snapshotSize; i++) {
+            long rank = snapshot.getRank(i);
+            values[i] = snapshot.getValue(i);
+            gs.set(i, rank - previousRank);
+            deltas.set(i, snapshot.getUpperRank(i) - rank);
+            previousRank = rank;
+        }
+        size = snapshotSize;
+        count = snapshot.getCount();
+    }
+
+    /**
+     * 将 parts[0, length) 的元组 k 路归并，覆盖当前摘要（this 也可以是其中之一），之后由调用方 compress
+     *
+     * 元组的 g 保持不变，所以归并后的 rank 下界就是各摘要 rank 下界之和；
+     * 对来自 parts[j] 的元组，其余每个摘要取第一个尚未输出的元组 y（即值大于等于它的后继），
+     * delta 增加 g(y) + delta(y) - 1，这正是 y 在该摘要中 rank 上界与下界之差的贡献。
+     * 因此归并结果中每个元组的 g + delta 不超过各摘要在对应 rank 处允许误差之和
+     */
+    void mergeFrom(CKMSSummary[] parts, int length) {
+        int total = 0;
+        long totalCount = 0;
+        for (int j = 0; j < length; j++) {
+            total += parts[j].size;
+            totalCount += parts[j].count;
+        }
+        ensureMergeCapacity(total);
+
+        // heads[j] 为 parts[j] 中下一个要输出的元组，heap 按 head 的值保存 part 下标
+        if (mergeHeads.length < length) {
+            mergeHeads = new int[length];
+            mergeHeap = new int[length];
+        }
+        int[] heads = mergeHeads;
+        int[] heap = mergeHeap;
+        Arrays.fill(heads, 0, length, 0);
+        int heapSize = 0;
+
+        // 所有 head 的 g + delta - 1 之和
+        long uncertainty = 0;
+        for (int j = 0; j < length; j++) {
+            if (parts[j].size > 0) {
+                uncertainty += parts[j].gs.get(0) + parts[j].deltas.get(0) - 1;
+                heap[heapSize] = j;
+                siftUp(parts, heads, heap, heapSize);
+                heapSize++;
+            }
+        }
+
+        int out = 0;
+        while (heapSize > 0) {
+            int j = heap[0];
+            CKMSSummary part = parts[j];
+            int i = heads[j];
+            long g = part.gs.get(i);
+            long delta = part.deltas.get(i);
+
+            mergeValues[out] = part.values[i];
+            mergeGs.set(out, g);
+            mergeDeltas.set(out, delta + uncertainty - (g + delta - 1));
+            out++;
+
+            uncertainty -= g + delta - 1;
+            heads[j] = ++i;
+            if (i < part.size) {
+                uncertainty += part.gs.get(i) + part.deltas.get(i) - 1;
+            } else {
+                heapSize--;
+                heap[0] = heap[heapSize];
+            }
+            siftDown(parts, heads, heap, heapSize);
+        }
+
+        double[] outValues = mergeValues;
+        RankArray outGs = mergeGs;
+        RankArray outDeltas = mergeDeltas;
+
+        mergeValues = values;
+        mergeGs = gs;
+        mergeDeltas = deltas;
+
+        values = outValues;
+        gs = outGs;
+        deltas = outDeltas;
+        size = out;
+        count = totalCount;
+    }
+
+    private static double head(CKMSSummary[] parts, int[] heads, int j) {
+        return parts[j].values[heads[j]];
+    }
+
+    private static void siftUp(CKMSSummary[] parts, int[] heads, int[] heap, int index) {
+        int j = heap[index];
+        double value = head(parts, heads, j);
+        while (index > 0) {
+            int parent = (index - 1) >>> 1;
+            if (head(parts, heads, heap[parent]) <= value) {
+                break;
+            }
+            heap[index] = heap[parent];
+            index = parent;
+        }
+        heap[index] = j;
+    }
+
+    private static void siftDown(CKMSSummary[] parts, int[] heads, int[] heap, int heapSize) {
+        if (heapSize == 0) {
+            return;
+        }
+
+        int index = 0;
+        int j = heap[0];
+        double value = head(parts, heads, j);
+        while (true) {
+            int child = 2 * index + 1;
+            if (child >= heapSize) {
+                break;
+            }
+            if (child + 1 < heapSize && head(parts, heads, heap[child + 1]) < head(parts, heads, heap[child])) {
+                child++;
+            }
+            if (value <= head(parts, heads, heap[child])) {
+                break;
+            }
+            heap[index] = heap[child];
+            index = child;
+        }
+        heap[index] = j;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (values.length >= capacity) {
+            return;
+        }
+
+        int newCapacity = Math.max(capacity, values.length * 2);
+        values = new double[newCapacity];
+        gs.reset(newCapacity);
+        deltas.reset(newCapacity);
+    }
+
+    private void ensureMergeCapacity(int capacity) {
+        if (mergeValues.length >= capacity) {
+            return;
+        }
+
+        int newCapacity = Math.max(capacity, mergeValues.length * 2);
+        mergeValues = new double[newCapacity];
+        mergeGs.reset(newCapacity);
+        mergeDeltas.reset(newCapacity);
+    }
+
+}
@@ -0,0 +1,252 @@
+package scyuan.quantiles.ckms;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
+/**
+ * CKMSQuantilesPrimitive 摘要的二进制编码，直接读写 ByteBuffer，不分配中间对象
+ *
+ * 格式（version 1），定长字段均为 big-endian，与 ByteBuffer 的 order 无关：
+ * <pre>
+ * byte    version
+ * byte    value encoding，见 {@link ValueEncoding}
+ * varint  quantile 个数，之后每个 quantile 为 8 字节 quantile + 8 字节 error
+ * varlong count
+ * varint  size
+ * size 个元组，每个元组依次为：
+ *   value   按 value encoding 编码
+ *   varlong g
+ *   varlong zigzag(delta[i] - delta[i-1])，delta[-1] 取 0
+ * </pre>
+ *
+ * @author yuan.shichao
+ */
+public final class CKMSSummaryCodec {
+
+    public static final byte VERSION = 1;
+
+    private static final int QUANTILE_BYTES = 16;
+
+    /**
+     * 一个元组至少占用的字节数：value、g、delta 各至少 1 字节
+     */
+    private static final int MIN_TUPLE_BYTES = 3;
+
+    /**
+     * 采样值的编码方式，采样值按升序排列
+     */
+    public enum ValueEncoding {
+        /**
+         * 每个值 8 字节
+         */
+        RAW,
+        /**
+         * 第一个值 8 字节，之后为与前一个值 bit 位之差的 zigzag varlong，适合非负且相邻值接近的数据
+         */
+        DELTA,
+        /**
+         * 第一个值 8 字节，之后为与前一个值 bit 位异或的 varlong，符号和指数相同时高位为 0
+         */
+        XOR
+    }
+
+    private CKMSSummaryCodec() {
+    }
+
+    /**
+     * 编码 summary 所需的最大字节数，summary 之后继续 observe 时可能变大
+     */
+    public static int maxEncodedSize(CKMSQuantilesPrimitive summary) {
+        return summary.maxEncodedSize();
+    }
+
+    static int maxEncodedSize(int quantileCount, int size) {
+        return 2 + 5 + quantileCount * QUANTILE_BYTES + 10 + 5 + size * (10 + 10 + 10);
+    }
+
+    /**
+     * 刷新 buffer 后编码 summary，空间不足时抛出 BufferOverflowException，out 的 position 不确定
+     */
+    public static void encode(CKMSQuantilesPrimitive summary, ByteBuffer out) {
+        encode(summary, out, ValueEncoding.DELTA);
+    }
+
+    public static void encode(CKMSQuantilesPrimitive summary, ByteBuffer out, ValueEncoding encoding) {
+        summary.encodeTo(out, encoding);
+    }
+
+    /**
+     * 从 in 的当前 position 解码一个摘要，格式错误或数据不完整时抛出 IllegalArgumentException，
+     * 分配内存前先按 in 的剩余字节数检查个数，损坏的输入不会导致大量分配
+     */
+    public static CKMSQuantilesPrimitive decode(ByteBuffer in) {
+        try {
+            return decodeChecked(in);
+        } catch (BufferUnderflowException e) {
+            throw new IllegalArgumentException("truncated input", e);
+        }
+    }
+
+    private static CKMSQuantilesPrimitive decodeChecked(ByteBuffer in) {
+        byte version = in.get();
+        if (version != VERSION) {
+            throw new IllegalArgumentException("unsupported version: " + version);
+        }
+
+        int encodingOrdinal = in.get();
+        if (encodingOrdinal < 0 || encodingOrdinal >= ValueEncoding.values().length) {
+            throw new IllegalArgumentException("unknown value encoding: " + encodingOrdinal);
+        }
+        ValueEncoding encoding = ValueEncoding.values()[encodingOrdinal];
+
+        int quantileCount = readVarInt(in);
+        if (quantileCount > in.remaining() / QUANTILE_BYTES) {
+            throw new IllegalArgumentException("quantile count exceeds input: " + quantileCount);
+        }
+        Quantile[] quantiles = new Quantile[quantileCount];
+        for (int i = 0; i < quantileCount; i++) {
+            double quantile = Double.longBitsToDouble(readFixedLong(in));
+            double error = Double.longBitsToDouble(readFixedLong(in));
+            quantiles[i] = new Quantile(quantile, error);
+        }
+
+        long count = readVarLong(in);
+        int size = readVarInt(in);
+
+        CKMSQuantilesPrimitive summary = new CKMSQuantilesPrimitive(quantiles);
+        summary.decodeFrom(in, encoding, size, count);
+        return summary;
+    }
+
+    /**
+     * 调用方持有 summary 所属对象的锁
+     */
+    static void write(Quantile[] quantiles, CKMSSummary summary, ByteBuffer out, ValueEncoding encoding) {
+        int size = summary.size();
+
+        out.put(VERSION);
+        out.put((byte) encoding.ordinal());
+
+        writeVarInt(out, quantiles.length);
+        for (Quantile quantile : quantiles) {
+            writeFixedLong(out, Double.doubleToRawLongBits(quantile.quantile));
+            writeFixedLong(out, Double.doubleToRawLongBits(quantile.error));
+        }
+
+        writeVarLong(out, summary.count());
+        writeVarInt(out, size);
+
+        long prevBits = 0;
+        long prevDelta = 0;
+        for (int i = 0; i < size; i++) {
+            long bits = Double.doubleToRawLongBits(summary.value(i));
+            if (i == 0 || encoding == ValueEncoding.RAW) {
+                writeFixedLong(out, bits);
+            } else if (encoding == ValueEncoding.DELTA) {
+                writeVarLong(out, zigzag(bits - prevBits));
+            } else {
+                writeVarLong(out, bits ^ prevBits);
+            }
+            prevBits = bits;
+
+            long delta = summary.delta(i);
+            writeVarLong(out, summary.g(i));
+            writeVarLong(out, zigzag(delta - prevDelta));
+            prevDelta = delta;
+        }
+    }
+
+    /**
+     * 读取 size 个元组追加到空的 summary，调用方持有 summary 所属对象的锁
+     */
+    static void read(ByteBuffer in, ValueEncoding encoding, int size, long count, CKMSSummary summary) {
+        if (size < 0) {
+            throw new IllegalArgumentException("negative size: " + size);
+        }
+        if (size > in.remaining() / MIN_TUPLE_BYTES) {
+            throw new IllegalArgumentException("size exceeds input: " + size);
+        }
+        summary.reserve(size);
+
+        long bits = 0;
+        long delta = 0;
+        for (int i = 0; i < size; i++) {
+            if (i == 0 || encoding == ValueEncoding.RAW) {
+                bits = readFixedLong(in);
+            } else if (encoding == ValueEncoding.DELTA) {
+                bits += unzigzag(readVarLong(in));
+            } else {
+                bits ^= readVarLong(in);
+            }
+            long g = readVarLong(in);
+            delta += unzigzag(readVarLong(in));
+
+            if (g < 1 || delta < -1) {
+                throw new IllegalArgumentException("invalid tuple at " + i + ": g=" + g + ", delta=" + delta);
+            }
+            double value = Double.longBitsToDouble(bits);
+            if (i > 0 && !(value >= summary.value(i - 1))) {
+                throw new IllegalArgumentException("values are not sorted at " + i);
+            }
+            summary.append(value, g, delta);
+        }
+
+        if (summary.count() != count) {
+            throw new IllegalArgumentException("count mismatch: " + count + " != " + summary.count());
+        }
+    }
+
+    private static long zigzag(long v) {
+        return (v << 1) ^ (v >> 63);
+    }
+
+    private static long unzigzag(long v) {
+        return (v >>> 1) ^ -(v & 1);
+    }
+
+    private static void writeFixedLong(ByteBuffer out, long v) {
+        for (int shift = 56; shift >= 0; shift -= 8) {
+            out.put((byte) (v >>> shift));
+        }
+    }
+
+    private static long readFixedLong(ByteBuffer in) {
+        long v = 0;
+        for (int i = 0; i < 8; i++) {
+            v = (v << 8) | (in.get() & 0xFF);
+        }
+        return v;
+    }
+
+    private static void writeVarInt(ByteBuffer out, int v) {
+        writeVarLong(out, v & 0xFFFFFFFFL);
+    }
+
+    private static int readVarInt(ByteBuffer in) {
+        long v = readVarLong(in);
+        if (v > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("varint out of range: " + v);
+        }
+        return (int) v;
+    }
+
+    private static void writeVarLong(ByteBuffer out, long v) {
+        while ((v & ~0x7FL) != 0) {
+            out.put((byte) ((v & 0x7F) | 0x80));
+            v >>>= 7;
+        }
+        out.put((byte) v);
+    }
+
+    private static long readVarLong(ByteBuffer in) {
+        long v = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = in.get();
+            v |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return v;
+            }
+        }
+        throw new IllegalArgumentException("malformed varlong");
+    }
+}
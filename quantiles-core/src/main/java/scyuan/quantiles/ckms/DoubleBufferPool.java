@@ -0,0 +1,98 @@
+package scyuan.quantiles.ckms;
+
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 线程安全，多个 CKMSQuantilesPrimitive 共享的 buffer 池
+ * 1. 序列有数据时才从池中取 buffer，flushBuffer 后归还，空闲的序列不占用 buffer，
+ *    大量序列中同时活跃的只有一小部分时，buffer 的总内存由活跃序列数决定
+ * 2. 池中最多保留 maxPooled 个空闲 buffer，池空时新分配，池满时直接丢弃
+ *
+ * @author yuan.shichao
+ */
+public class DoubleBufferPool {
+
+    private final int bufferSize;
+
+    private final double[][] free;
+
+    private int freeCount = 0;
+
+    private long allocated = 0;
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    /**
+     * @param bufferSize 每个 buffer 的长度
+     * @param maxPooled 池中最多保留的空闲 buffer 个数
+     */
+    public DoubleBufferPool(int bufferSize, int maxPooled) {
+        if (bufferSize < 1) {
+            throw new IllegalArgumentException("bufferSize must be positive: " + bufferSize);
+        }
+        if (maxPooled < 0) {
+            throw new IllegalArgumentException("maxPooled must not be negative: " + maxPooled);
+        }
+        this.bufferSize = bufferSize;
+        this.free = new double[maxPooled][];
+    }
+
+    public double[] acquire() {
+        lock.lock();
+        try {
+            if (freeCount > 0) {
+                double[] buffer = free[--freeCount];
+                free[freeCount] = null;
+                return buffer;
+            }
+            allocated++;
+        } finally {
+            lock.unlock();
+        }
+        return new double[bufferSize];
+    }
+
+    public void release(double[] buffer) {
+        if (buffer.length != bufferSize) {
+            throw new IllegalArgumentException("buffer size mismatch: " + buffer.length + " != " + bufferSize);
+        }
+
+        lock.lock();
+        try {
+            if (freeCount < free.length) {
+                free[freeCount++] = buffer;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    /**
+     * 当前空闲的 buffer 个数
+     */
+    public int getPooled() {
+        lock.lock();
+        try {
+            return freeCount;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 池空时新分配的 buffer 总数
+     */
+    public long getAllocated() {
+        lock.lock();
+        try {
+            return allocated;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+}
@@ -0,0 +1,102 @@
+package scyuan.quantiles.ckms;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 有界的多生产者单消费者 double 环形队列，不装箱、不分配内存
+ * 1. 生产者 CAS 推进 tail 认领序号，写入槽位后把序号写入 published 对应位置发布，队列满时不认领
+ * 2. 消费者从 head 开始读取 published 与序号相等的连续槽位，读完后推进 head 释放空间
+ * 3. drainTo 只能由一个线程调用，调用方负责互斥
+ *
+ * @author yuan.shichao
+ */
+final class DoubleRingBuffer {
+
+    private final double[] values;
+
+    /**
+     * published[i] 为槽位 i 最近一次发布的序号，初始为 -1
+     */
+    private final AtomicLongArray published;
+
+    private final int mask;
+
+    /**
+     * 下一个待认领的序号
+     */
+    private final AtomicLong tail = new AtomicLong();
+
+    /**
+     * 下一个待消费的序号，只由消费者推进
+     */
+    private final AtomicLong head = new AtomicLong();
+
+    /**
+     * @param capacity 向上取整到 2 的幂
+     */
+    DoubleRingBuffer(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity must be positive: " + capacity);
+        }
+        int size = 1;
+        while (size < capacity) {
+            size <<= 1;
+        }
+
+        values = new double[size];
+        published = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            published.set(i, -1);
+        }
+        mask = size - 1;
+    }
+
+    /**
+     * 队列满时返回 false
+     */
+    boolean offer(double v) {
+        long seq;
+        do {
+            seq = tail.get();
+            if (seq - head.get() >= values.length) {
+                return false;
+            }
+        } while (!tail.compareAndSet(seq, seq + 1));
+
+        int index = (int) seq & mask;
+        values[index] = v;
+        published.lazySet(index, seq);
+        return true;
+    }
+
+    /**
+     * 读取最多 max 个已发布的值到 dst[0, max)，返回读取的个数
+     */
+    int drainTo(double[] dst, int max) {
+        long seq = head.get();
+        int n = 0;
+        while (n < max) {
+            int index = (int) seq & mask;
+            if (published.get(index) != seq) {
+                break;
+            }
+            dst[n++] = values[index];
+            seq++;
+        }
+        head.lazySet(seq);
+        return n;
+    }
+
+    /**
+     * 已认领的个数，包含尚未发布的槽位
+     */
+    int size() {
+        return (int) (tail.get() - head.get());
+    }
+
+    int capacity() {
+        return values.length;
+    }
+
+}
@@ -0,0 +1,141 @@
+package scyuan.quantiles.ckms;
+
+import java.util.Arrays;
+
+/**
+ * CKMS 论文中 f(r, n) 的分段线性表，非线程安全，供 insertBatch 和 compress 使用
+ * 1. 每个 Quantile 贡献一条 V 形折线 r <= qn ? u(n - r) : vr，f 为所有折线的下包络再与 n + 1 取最小
+ * 2. 折线的断点（各 qn 以及任意两条直线的交点）都与 n 成正比，构造时按 n = 1 计算一次断点和每段取最小值的直线
+ * 3. count 变化时只把断点乘以新的 n，不重新比较各条直线
+ * 4. 查询时游标从上一次的位置向前或向后移动，rank 单调时均摊 O(1)
+ *
+ * @author yuan.shichao
+ */
+final class ErrorEnvelope {
+
+    private final Quantile quantiles[];
+
+    /**
+     * 第 s 段覆盖 (breakpoints[s-1] * n, breakpoints[s] * n]，最后一段的断点为正无穷
+     */
+    private final double[] breakpoints;
+
+    /**
+     * breakpoints 乘以当前 n
+     */
+    private final double[] upper;
+
+    /**
+     * 第 s 段取最小值的 quantile 下标
+     */
+    private final int[] targets;
+
+    /**
+     * 第 s 段使用 u(n - r) 还是 vr
+     */
+    private final boolean[] lowerBranches;
+
+    private final int segments;
+
+    private long n = -1;
+
+    private int cursor;
+
+    ErrorEnvelope(Quantile[] quantiles) {
+        this.quantiles = quantiles;
+
+        // n = 1 时 u(n - r) 与 vr 两两之间的交点，u 与 u、v 与 v 之间只交于 r = 1 或 r = 0
+        double[] points = new double[quantiles.length * (quantiles.length + 1) + 1];
+        int count = 0;
+        for (Quantile q : quantiles) {
+            points[count++] = q.quantile;
+        }
+        for (Quantile a : quantiles) {
+            for (Quantile b : quantiles) {
+                points[count++] = a.u / (a.u + b.v);
+            }
+        }
+        points[count++] = 1;
+        Arrays.sort(points, 0, count);
+
+        int distinct = 0;
+        for (int i = 0; i < count; i++) {
+            if (points[i] > 0 && (distinct == 0 || points[i] != points[distinct - 1])) {
+                points[distinct++] = points[i];
+            }
+        }
+
+        segments = distinct + 1;
+        breakpoints = Arrays.copyOf(points, segments);
+        breakpoints[distinct] = Double.POSITIVE_INFINITY;
+        upper = new double[segments];
+        upper[distinct] = Double.POSITIVE_INFINITY;
+        targets = new int[segments];
+        lowerBranches = new boolean[segments];
+
+        for (int s = 0; s < segments; s++) {
+            double r;
+            if (s == 0) {
+                r = breakpoints[0] / 2;
+            } else if (s == distinct) {
+                r = breakpoints[s - 1] + 1;
+            } else {
+                r = (breakpoints[s - 1] + breakpoints[s]) / 2;
+            }
+            choose(s, r);
+        }
+    }
+
+    /**
+     * 按新的 count 缩放断点，count 不变时不做任何事
+     */
+    void update(long count) {
+        if (count == n) {
+            return;
+        }
+
+        n = count;
+        for (int s = 0; s < segments - 1; s++) {
+            upper[s] = breakpoints[s] * n;
+        }
+    }
+
+    /**
+     * 与 CKMSSummary.allowableError(quantiles, n, rank) 相同，n 为最近一次 update 的 count
+     */
+    double at(long rank) {
+        int s = cursor;
+        while (rank > upper[s]) {
+            s++;
+        }
+        while (s > 0 && rank <= upper[s - 1]) {
+            s--;
+        }
+        cursor = s;
+
+        if (quantiles.length == 0) {
+            return n + 1;
+        }
+        Quantile q = quantiles[targets[s]];
+        double error = lowerBranches[s] ? q.u * (n - rank) : q.v * rank;
+        return Math.min(error, n + 1);
+    }
+
+    /**
+     * 按 n = 1 时 r 处各折线的值决定第 s 段使用的直线，判断条件与 allowableError 相同
+     */
+    private void choose(int s, double r) {
+        double minError = Double.POSITIVE_INFINITY;
+        for (int i = 0; i < quantiles.length; i++) {
+            Quantile q = quantiles[i];
+            boolean lower = r <= q.quantile;
+            double error = lower ? q.u * (1 - r) : q.v * r;
+            if (error < minError) {
+                minError = error;
+                targets[s] = i;
+                lowerBranches[s] = lower;
+            }
+        }
+    }
+
+}
@@ -0,0 +1,294 @@
+package scyuan.quantiles.ckms;
+
+import scyuan.quantiles.Quantiles;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+
+/**
+ * 线程安全，数据量小时保存原始数据，超过阈值后转换为 sketch
+ * 1. 数据个数不超过 threshold 时，原始值保存在可扩容的 double[] 中，查询为精确值：get 原地 quickselect，O(n)，
+ *    getAll 排序一次后按下标读取；数据量小的序列不需要 buffer、insert 和 compress，内存也不多于 CKMS 的元组
+ * 2. 超过 threshold 时用 sketchFactory 创建 sketch，通过 observeAll 一次批量导入所有原始值，之后释放数组，
+ *    observe 直接写入 sketch，不再经过本对象的锁
+ *
+ * @author yuan.shichao
+ */
+public class HybridQuantiles implements Quantiles {
+
+    private final int threshold;
+
+    private final Supplier<? extends Quantiles> sketchFactory;
+
+    /**
+     * 转换后不为 null，之后所有操作都交给它
+     */
+    private volatile Quantiles sketch;
+
+    /**
+     * 以下字段只在 lock 下访问，转换后不再使用
+     */
+    private double[] values;
+    private int size = 0;
+    private boolean sorted = true;
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private final Quantile quantiles[];
+
+    private final Collection<Double> registered;
+
+    /**
+     * 超过 threshold 后转换为 CKMSQuantilesPrimitive
+     */
+    public HybridQuantiles(Quantile[] quantiles, int threshold) {
+        this(quantiles, threshold, () -> new CKMSQuantilesPrimitive(quantiles));
+    }
+
+    /**
+     * @param threshold 保存原始值的个数上限
+     * @param sketchFactory 超过 threshold 时创建 sketch，只调用一次
+     */
+    public HybridQuantiles(Quantile[] quantiles, int threshold, Supplier<? extends Quantiles> sketchFactory) {
+        if (threshold < 1) {
+            throw new IllegalArgumentException("threshold must be positive: " + threshold);
+        }
+        this.quantiles = quantiles;
+        this.threshold = threshold;
+        this.sketchFactory = sketchFactory;
+
+        registered = new ArrayList<>();
+        for (Quantile quantile : quantiles) {
+            registered.add(quantile.getQuantile());
+        }
+
+        values = new double[Math.min(threshold, 64)];
+    }
+
+    @Override
+    public void observe(double value) {
+        Quantiles sketch = this.sketch;
+        if (sketch != null) {
+            sketch.observe(value);
+            return;
+        }
+
+        lock.lock();
+        try {
+            sketch = this.sketch;
+            if (sketch != null) {
+                sketch.observe(value);
+                return;
+            }
+
+            if (size == threshold) {
+                // 第 threshold + 1 个值到来时才转换，threshold 个以内的值都是精确的
+                promote();
+                this.sketch.observe(value);
+                return;
+            }
+
+            if (size == values.length) {
+                values = Arrays.copyOf(values, Math.min(threshold, values.length * 2));
+            }
+            if (sorted && size > 0 && value < values[size - 1]) {
+                sorted = false;
+            }
+            values[size++] = value;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public double get(double q) {
+        Quantiles sketch = this.sketch;
+        if (sketch != null) {
+            return sketch.get(q);
+        }
+
+        lock.lock();
+        try {
+            sketch = this.sketch;
+            if (sketch != null) {
+                return sketch.get(q);
+            }
+            if (size == 0) {
+                return Double.NaN;
+            }
+
+            int index = index(q);
+            if (!sorted) {
+                select(values, 0, size - 1, index);
+            }
+            return values[index];
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void getAll(double[] qs, double[] out) {
+        Quantiles sketch = this.sketch;
+        if (sketch != null) {
+            sketch.getAll(qs, out);
+            return;
+        }
+
+        lock.lock();
+        try {
+            sketch = this.sketch;
+            if (sketch != null) {
+                sketch.getAll(qs, out);
+                return;
+            }
+            if (size == 0) {
+                Arrays.fill(out, 0, qs.length, Double.NaN);
+                return;
+            }
+
+            if (!sorted) {
+                Arrays.sort(values, 0, size);
+                sorted = true;
+            }
+            for (int k = 0; k < qs.length; k++) {
+                out[k] = values[index(qs[k])];
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public Collection<Double> monitored() {
+        return registered;
+    }
+
+    @Override
+    public void flushBuffer() {
+        Quantiles sketch = this.sketch;
+        if (sketch != null) {
+            sketch.flushBuffer();
+        }
+    }
+
+    /**
+     * 转换前为原始值的个数
+     */
+    @Override
+    public int getSampleSize() {
+        Quantiles sketch = this.sketch;
+        if (sketch != null) {
+            return sketch.getSampleSize();
+        }
+
+        lock.lock();
+        try {
+            return this.sketch != null ? this.sketch.getSampleSize() : size;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public long getCount() {
+        Quantiles sketch = this.sketch;
+        if (sketch != null) {
+            return sketch.getCount();
+        }
+
+        lock.lock();
+        try {
+            return this.sketch != null ? this.sketch.getCount() : size;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 是否已经转换为 sketch
+     */
+    public boolean isPromoted() {
+        return sketch != null;
+    }
+
+    public Quantile[] getQuantiles() {
+        return quantiles;
+    }
+
+    private void promote() {
+        Quantiles promoted = sketchFactory.get();
+        promoted.observeAll(values, 0, size);
+        values = null;
+        size = 0;
+        sketch = promoted;
+    }
+
+    /**
+     * 第 floor(q * (n - 1)) 小的值的下标
+     */
+    private int index(double q) {
+        if (q <= 0) {
+            return 0;
+        }
+        if (q >= 1) {
+            return size - 1;
+        }
+        return (int) (q * (size - 1));
+    }
+
+    /**
+     * quickselect，结束后 data[k] 为 [left, right] 中第 k 小的值，左边不大于它，右边不小于它
+     */
+    private static void select(double[] data, int left, int right, int k) {
+        while (left < right) {
+            int mid = (left + right) >>> 1;
+            // 三数取中，放在 left
+            if (data[mid] < data[left]) {
+                swap(data, mid, left);
+            }
+            if (data[right] < data[left]) {
+                swap(data, right, left);
+            }
+            if (data[right] < data[mid]) {
+                swap(data, right, mid);
+            }
+            swap(data, left, mid);
+
+            double pivot = data[left];
+            int i = left;
+            int j = right + 1;
+            while (true) {
+                do {
+                    i++;
+                } while (i <= right && data[i] < pivot);
+                do {
+                    j--;
+                } while (data[j] > pivot);
+                if (i >= j) {
+                    break;
+                }
+                swap(data, i, j);
+            }
+            swap(data, left, j);
+
+            if (j == k) {
+                return;
+            } else if (j < k) {
+                left = j + 1;
+            } else {
+                right = j - 1;
+            }
+        }
+    }
+
+    private static void swap(double[] data, int i, int j) {
+        double tmp = data[i];
+        data[i] = data[j];
+        data[j] = tmp;
+    }
+
+}
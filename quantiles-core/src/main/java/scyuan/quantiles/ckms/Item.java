@@ -5,10 +5,10 @@ package scyuan.quantiles.ckms;
  */
 public class Item {
     public final double value;
-    int g;
-    final int delta;
+    long g;
+    final long delta;
 
-    Item(double value, int lower_delta, int delta) {
+    Item(double value, long lower_delta, long delta) {
         this.value = value;
         this.g = lower_delta;
         this.delta = delta;
@@ -0,0 +1,109 @@
+package scyuan.quantiles.ckms;
+
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 统计 CKMS 估计器的锁等待时间，用于压测，默认关闭
+ * 1. 启动时指定 -Dscyuan.quantiles.lockProfiling=true 才生效，关闭时估计器使用普通的 ReentrantLock，没有额外开销
+ * 2. 开启时 lock() 先 tryLock，失败才计时并阻塞等待；估计器自己调用的 tryLock 失败只计数
+ * 3. 统计按线程分开记录，只由线程自己写入和读取，不需要同步
+ *
+ * @author yuan.shichao
+ */
+public final class LockProfiler {
+
+    public static final String PROPERTY = "scyuan.quantiles.lockProfiling";
+
+    private static final boolean ENABLED = Boolean.getBoolean(PROPERTY);
+
+    private static final ThreadLocal<Stats> STATS = ThreadLocal.withInitial(Stats::new);
+
+    private LockProfiler() {
+    }
+
+    public static boolean isEnabled() {
+        return ENABLED;
+    }
+
+    /**
+     * 当前线程的统计，只能在当前线程中使用
+     */
+    public static Stats currentThread() {
+        return STATS.get();
+    }
+
+    static ReentrantLock newLock() {
+        return ENABLED ? new ProfiledLock() : new ReentrantLock();
+    }
+
+    public static final class Stats {
+        private long acquisitions;
+        private long contended;
+        private long blockedNanos;
+        private long failedTryLocks;
+
+        /**
+         * lock() 的次数
+         */
+        public long getAcquisitions() {
+            return acquisitions;
+        }
+
+        /**
+         * lock() 时锁已经被占用的次数
+         */
+        public long getContended() {
+            return contended;
+        }
+
+        /**
+         * lock() 阻塞等待的总时间
+         */
+        public long getBlockedNanos() {
+            return blockedNanos;
+        }
+
+        /**
+         * tryLock() 失败的次数
+         */
+        public long getFailedTryLocks() {
+            return failedTryLocks;
+        }
+
+        public void reset() {
+            acquisitions = 0;
+            contended = 0;
+            blockedNanos = 0;
+            failedTryLocks = 0;
+        }
+    }
+
+    private static final class ProfiledLock extends ReentrantLock {
+
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        public void lock() {
+            Stats stats = STATS.get();
+            stats.acquisitions++;
+            if (super.tryLock()) {
+                return;
+            }
+
+            stats.contended++;
+            long start = System.nanoTime();
+            super.lock();
+            stats.blockedNanos += System.nanoTime() - start;
+        }
+
+        @Override
+        public boolean tryLock() {
+            if (super.tryLock()) {
+                return true;
+            }
+            STATS.get().failedTryLocks++;
+            return false;
+        }
+    }
+
+}
@@ -0,0 +1,17 @@
+package scyuan.quantiles.ckms;
+
+/**
+ * 缓冲队列已满时 observe 的处理方式
+ *
+ * @author yuan.shichao
+ */
+public enum OverflowPolicy {
+    /**
+     * 丢弃当前数据并计数，observe 不等待
+     */
+    DROP,
+    /**
+     * 等待队列腾出空间，拿到锁时由当前线程归并队列
+     */
+    BLOCK
+}
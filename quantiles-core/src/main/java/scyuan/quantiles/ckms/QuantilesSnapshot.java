@@ -0,0 +1,117 @@
+package scyuan.quantiles.ckms;
+
+/**
+ * CKMS 摘要的不可变快照
+ * 1. 由 compress 之后的摘要复制而来，发布后不再修改，可以无锁读取
+ * 2. 查询结果与加锁读取摘要相同，通过累计上界做二分查找，O(log n)
+ *
+ * @author yuan.shichao
+ */
+public final class QuantilesSnapshot {
+
+    private final Quantile quantiles[];
+
+    private final long count;
+
+    private final int size;
+
+    private final double[] values;
+
+    /**
+     * ranks[i] = g[0] + ... + g[i]
+     */
+    private final long[] ranks;
+
+    /**
+     * upperRanks[i] = max(ranks[j] + delta[j])，j 取 [1, i]，单调不减，用于二分查找
+     */
+    private final long[] upperRanks;
+
+    QuantilesSnapshot(Quantile[] quantiles, long count, int size, double[] values, long[] ranks, long[] upperRanks) {
+        this.quantiles = quantiles;
+        this.count = count;
+        this.size = size;
+        this.values = values;
+        this.ranks = ranks;
+        this.upperRanks = upperRanks;
+    }
+
+    static QuantilesSnapshot empty(Quantile[] quantiles) {
+        return new QuantilesSnapshot(quantiles, 0, 0, new double[0], new long[0], new long[0]);
+    }
+
+    public double get(double q) {
+        if (size == 0) {
+            return Double.NaN;
+        }
+
+        return values[search(threshold(q)) - 1];
+    }
+
+    public void getAll(double[] qs, double[] out) {
+        for (int k = 0; k < qs.length; k++) {
+            out[k] = get(qs[k]);
+        }
+    }
+
+    /**
+     * 数据总个数，不包含快照之后仍在 buffer 中的数据
+     */
+    public long getCount() {
+        return count;
+    }
+
+    public int getSampleSize() {
+        return size;
+    }
+
+    public double getValue(int index) {
+        checkIndex(index);
+        return values[index];
+    }
+
+    /**
+     * 第 index 个采样值的累计 rank 下界
+     */
+    public long getRank(int index) {
+        checkIndex(index);
+        return ranks[index];
+    }
+
+    /**
+     * 第 index 个采样值的 rank 上界，见 upperRanks，包内用来把快照还原为摘要
+     */
+    long getUpperRank(int index) {
+        checkIndex(index);
+        return index == 0 ? ranks[0] : upperRanks[index];
+    }
+
+    private double threshold(double q) {
+        long desired = (long) (q * count);
+        return desired + (CKMSSummary.allowableError(quantiles, count, desired) / 2);
+    }
+
+    /**
+     * 返回 [1, size) 中第一个 upperRanks[i] > threshold 的位置，不存在时返回 size
+     */
+    private int search(double threshold) {
+        int low = 1;
+        int high = size;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (upperRanks[mid] > threshold) {
+                high = mid;
+            } else {
+                low = mid + 1;
+            }
+        }
+        return low;
+    }
+
+    private void checkIndex(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("index: " + index + ", size: " + size);
+        }
+    }
+
+}
@@ -0,0 +1,98 @@
+package scyuan.quantiles.ckms;
+
+import java.util.Arrays;
+
+/**
+ * 保存 g 或 delta 的 long 数组，非线程安全
+ * 1. 默认使用 int[]，与之前的内存占用相同
+ * 2. 写入超出 int 范围的值时整体加宽为 long[]，之后不再缩回
+ *
+ * @author yuan.shichao
+ */
+final class RankArray {
+
+    private int[] ints;
+
+    /**
+     * 加宽后非 null，此时 ints 为 null
+     */
+    private long[] longs;
+
+    RankArray(int capacity) {
+        ints = new int[capacity];
+    }
+
+    long get(int index) {
+        return longs == null ? ints[index] : longs[index];
+    }
+
+    void set(int index, long value) {
+        if (longs != null) {
+            longs[index] = value;
+        } else if (value == (int) value) {
+            ints[index] = (int) value;
+        } else {
+            widen();
+            longs[index] = value;
+        }
+    }
+
+    int length() {
+        return longs == null ? ints.length : longs.length;
+    }
+
+    boolean isWide() {
+        return longs != null;
+    }
+
+    /**
+     * 保留现有内容扩容
+     */
+    void grow(int capacity) {
+        if (longs == null) {
+            ints = Arrays.copyOf(ints, capacity);
+        } else {
+            longs = Arrays.copyOf(longs, capacity);
+        }
+    }
+
+    /**
+     * 不保留内容重新分配，保持当前宽度
+     */
+    void reset(int capacity) {
+        if (longs == null) {
+            ints = new int[capacity];
+        } else {
+            longs = new long[capacity];
+        }
+    }
+
+    /**
+     * 同 System.arraycopy，src 已加宽时 dst 也会加宽
+     */
+    static void copy(RankArray src, int srcPos, RankArray dst, int dstPos, int length) {
+        if (src.longs != null && dst.longs == null) {
+            dst.widen();
+        }
+
+        if (src.longs == null && dst.longs == null) {
+            System.arraycopy(src.ints, srcPos, dst.ints, dstPos, length);
+        } else if (src.longs != null) {
+            System.arraycopy(src.longs, srcPos, dst.longs, dstPos, length);
+        } else {
+            for (int i = 0; i < length; i++) {
+                dst.longs[dstPos + i] = src.ints[srcPos + i];
+            }
+        }
+    }
+
+    private void widen() {
+        long[] wide = new long[ints.length];
+        for (int i = 0; i < ints.length; i++) {
+            wide[i] = ints[i];
+        }
+        longs = wide;
+        ints = null;
+    }
+
+}
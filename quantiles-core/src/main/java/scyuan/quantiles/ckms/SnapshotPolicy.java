@@ -0,0 +1,61 @@
+package scyuan.quantiles.ckms;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 读操作的方式
+ * 1. locked: 读操作和写操作使用同一把锁，读到最新数据，默认方式
+ * 2. onCompress: 每次 compress 后发布不可变快照，读操作只读快照，不加锁，buffer 中的数据要等下一次 compress 才可见
+ * 3. maxStaleness: 同 onCompress，快照超过指定时间时，读线程 tryLock 刷新 buffer 并重新发布，拿不到锁直接返回旧快照
+ *
+ * @author yuan.shichao
+ */
+public final class SnapshotPolicy {
+
+    private static final SnapshotPolicy LOCKED = new SnapshotPolicy(false, Long.MAX_VALUE);
+
+    private static final SnapshotPolicy ON_COMPRESS = new SnapshotPolicy(true, Long.MAX_VALUE);
+
+    private final boolean snapshot;
+
+    private final long maxStalenessNanos;
+
+    private SnapshotPolicy(boolean snapshot, long maxStalenessNanos) {
+        this.snapshot = snapshot;
+        this.maxStalenessNanos = maxStalenessNanos;
+    }
+
+    public static SnapshotPolicy locked() {
+        return LOCKED;
+    }
+
+    public static SnapshotPolicy onCompress() {
+        return ON_COMPRESS;
+    }
+
+    public static SnapshotPolicy maxStaleness(long duration, TimeUnit unit) {
+        if (duration < 0) {
+            throw new IllegalArgumentException("duration must not be negative: " + duration);
+        }
+        return new SnapshotPolicy(true, unit.toNanos(duration));
+    }
+
+    boolean isSnapshot() {
+        return snapshot;
+    }
+
+    boolean isStale(long publishNanos) {
+        return maxStalenessNanos != Long.MAX_VALUE && System.nanoTime() - publishNanos > maxStalenessNanos;
+    }
+
+    @Override
+    public String toString() {
+        if (!snapshot) {
+            return "SnapshotPolicy{locked}";
+        }
+        if (maxStalenessNanos == Long.MAX_VALUE) {
+            return "SnapshotPolicy{onCompress}";
+        }
+        return String.format("SnapshotPolicy{maxStaleness=%dns}", maxStalenessNanos);
+    }
+}
@@ -0,0 +1,199 @@
+package scyuan.quantiles.ckms;
+
+import scyuan.quantiles.Quantiles;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.LongSupplier;
+
+/**
+ * 线程安全，只统计最近一段时间的数据
+ * 1. 使用 N 个 CKMSQuantilesPrimitive 组成环，每个 bucket 负责 window / N 时间内的数据，observe 只写当前 bucket
+ * 2. observe 时比较一次时钟，到期后由一个线程把最老的 bucket 清空复用为当前 bucket，O(1) 且不分配内存
+ * 3. 查询时归并所有 bucket，统计范围在 (N - 1) / N * window 到 window 之间
+ *
+ * @author yuan.shichao
+ */
+public class TimeWindowQuantiles implements Quantiles {
+
+    private final CKMSQuantilesPrimitive[] buckets;
+
+    private final long bucketNanos;
+
+    private final LongSupplier nanoClock;
+
+    private volatile int current = 0;
+
+    /**
+     * 下一次轮转的时间
+     */
+    private volatile long rotateAtNanos;
+
+    private final AtomicBoolean rotating = new AtomicBoolean(false);
+
+    private final ReentrantLock queryLock = new ReentrantLock();
+
+    /**
+     * 以下字段只在 queryLock 下访问
+     */
+    private final CKMSSummary[] bucketSummaries;
+    private final CKMSSummary merged;
+
+    private final Quantile quantiles[];
+
+    private final Collection<Double> registered;
+
+    /**
+     * @param window 统计的时间范围
+     * @param bucketCount bucket 个数，越多越接近 window，查询时归并的开销也越大
+     */
+    public TimeWindowQuantiles(Quantile[] quantiles, long window, TimeUnit unit, int bucketCount) {
+        this(quantiles, window, unit, bucketCount, System::nanoTime);
+    }
+
+    /**
+     * @param nanoClock 纳秒时钟，与 System.nanoTime 一样只用于计算时间差，测试中可以替换为手动推进的时钟
+     */
+    public TimeWindowQuantiles(Quantile[] quantiles, long window, TimeUnit unit, int bucketCount, LongSupplier nanoClock) {
+        if (bucketCount < 1) {
+            throw new IllegalArgumentException("bucketCount must be positive: " + bucketCount);
+        }
+        long windowNanos = unit.toNanos(window);
+        if (windowNanos < bucketCount) {
+            throw new IllegalArgumentException("window is too small: " + windowNanos + "ns");
+        }
+
+        this.quantiles = quantiles;
+        this.nanoClock = nanoClock;
+
+        registered = new ArrayList<>();
+        for (Quantile quantile : quantiles) {
+            registered.add(quantile.getQuantile());
+        }
+
+        buckets = new CKMSQuantilesPrimitive[bucketCount];
+        bucketSummaries = new CKMSSummary[bucketCount];
+        for (int i = 0; i < bucketCount; i++) {
+            buckets[i] = new CKMSQuantilesPrimitive(quantiles);
+            bucketSummaries[i] = new CKMSSummary(quantiles, 200);
+        }
+        merged = new CKMSSummary(quantiles, 200);
+
+        bucketNanos = windowNanos / bucketCount;
+        rotateAtNanos = nanoClock.getAsLong() + bucketNanos;
+    }
+
+    @Override
+    public void observe(double value) {
+        rotateIfExpired();
+        buckets[current].observe(value);
+    }
+
+    @Override
+    public double get(double q) {
+        queryLock.lock();
+        try {
+            mergeBuckets();
+            return merged.get(q);
+        } finally {
+            queryLock.unlock();
+        }
+    }
+
+    @Override
+    public void getAll(double[] qs, double[] out) {
+        queryLock.lock();
+        try {
+            mergeBuckets();
+            merged.getAll(qs, out);
+        } finally {
+            queryLock.unlock();
+        }
+    }
+
+    @Override
+    public Collection<Double> monitored() {
+        return registered;
+    }
+
+    @Override
+    public void flushBuffer() {
+        rotateIfExpired();
+        for (CKMSQuantilesPrimitive bucket : buckets) {
+            bucket.flushBuffer();
+        }
+    }
+
+    /**
+     * 所有 bucket 的采样数据个数之和
+     */
+    @Override
+    public int getSampleSize() {
+        rotateIfExpired();
+        int sampleSize = 0;
+        for (CKMSQuantilesPrimitive bucket : buckets) {
+            sampleSize += bucket.getSampleSize();
+        }
+        return sampleSize;
+    }
+
+    /**
+     * 当前窗口内的数据个数，不包含 buffer 中的数据
+     */
+    @Override
+    public long getCount() {
+        rotateIfExpired();
+        long count = 0;
+        for (CKMSQuantilesPrimitive bucket : buckets) {
+            count += bucket.getCount();
+        }
+        return count;
+    }
+
+    private void mergeBuckets() {
+        rotateIfExpired();
+        for (int i = 0; i < buckets.length; i++) {
+            buckets[i].copySummaryTo(bucketSummaries[i]);
+        }
+        merged.mergeFrom(bucketSummaries, buckets.length);
+        merged.compress();
+    }
+
+    private void rotateIfExpired() {
+        long now = nanoClock.getAsLong();
+        if (now - rotateAtNanos < 0 || !rotating.compareAndSet(false, true)) {
+            return;
+        }
+
+        try {
+            long rotateAt = rotateAtNanos;
+            if (now - rotateAt >= bucketNanos * buckets.length) {
+                // 整个窗口都已过期
+                for (CKMSQuantilesPrimitive bucket : buckets) {
+                    bucket.reset();
+                }
+                rotateAtNanos = now + bucketNanos;
+                return;
+            }
+
+            int index = current;
+            while (now - rotateAt >= 0) {
+                index = (index + 1) % buckets.length;
+                buckets[index].reset();
+                current = index;
+                rotateAt += bucketNanos;
+            }
+            rotateAtNanos = rotateAt;
+        } finally {
+            rotating.set(false);
+        }
+    }
+
+    public Quantile[] getQuantiles() {
+        return quantiles;
+    }
+
+}
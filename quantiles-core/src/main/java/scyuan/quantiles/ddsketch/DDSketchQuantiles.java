@@ -0,0 +1,299 @@
+package scyuan.quantiles.ddsketch;
+
+import scyuan.quantiles.Quantiles;
+import scyuan.quantiles.ckms.Quantile;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 线程安全，按照 "DDSketch: A Fast and Fully-Mergeable Quantile Sketch with Relative-Error Guarantees" (VLDB 2019) 实现
+ * 1. 值按 IndexMapping 映射到 bucket，返回值与真实值的相对误差不超过 relativeAccuracy，与数据个数和分布无关，
+ *    适合长尾的延迟数据；CKMS 的误差是 rank 误差，p9999 附近的值可能差很多
+ * 2. 正数和负数分别保存在两个 store 中，绝对值小于 minIndexableValue 的计为 0
+ * 3. store 开始为 SparseStore，bucket 变多后转换为 DenseStore，bucket 个数超过 maxBuckets 时合并最低的 bucket
+ * 4. 相同 IndexMapping 的 sketch 可以无损合并
+ *
+ * @author yuan.shichao
+ */
+public class DDSketchQuantiles implements Quantiles {
+
+    private static final int DEFAULT_MAX_BUCKETS = 2048;
+
+    private final IndexMapping mapping;
+
+    private final int maxBuckets;
+
+    private final double minIndexableValue;
+
+    private Store positive = new SparseStore();
+
+    private Store negative = new SparseStore();
+
+    private long zeroCount = 0;
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    /**
+     * 只使用 quantile，error 由 relativeAccuracy 决定
+     */
+    private final Quantile quantiles[];
+
+    private final Collection<Double> registered;
+
+    public DDSketchQuantiles(Quantile[] quantiles, double relativeAccuracy) {
+        this(quantiles, IndexMapping.logarithmic(relativeAccuracy), DEFAULT_MAX_BUCKETS);
+    }
+
+    /**
+     * @param maxBuckets 正数和负数各自的 bucket 个数上限，超过时合并最低的 bucket
+     */
+    public DDSketchQuantiles(Quantile[] quantiles, IndexMapping mapping, int maxBuckets) {
+        if (maxBuckets < 1) {
+            throw new IllegalArgumentException("maxBuckets must be positive: " + maxBuckets);
+        }
+        this.quantiles = quantiles;
+        this.mapping = mapping;
+        this.maxBuckets = maxBuckets;
+        this.minIndexableValue = mapping.minIndexableValue();
+
+        registered = new ArrayList<>();
+        for (Quantile quantile : quantiles) {
+            registered.add(quantile.getQuantile());
+        }
+    }
+
+    @Override
+    public void observe(double value) {
+        if (Double.isNaN(value) || Double.isInfinite(value)) {
+            return;
+        }
+
+        lock.lock();
+        try {
+            if (value >= minIndexableValue) {
+                positive = add(positive, mapping.index(value), 1);
+            } else if (value <= -minIndexableValue) {
+                negative = add(negative, mapping.index(-value), 1);
+            } else {
+                zeroCount++;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 把 other 的数据合并进来，other 本身不变，IndexMapping 必须相同；
+     * 合并是按 bucket 相加，除了超过 maxBuckets 时的合并外没有额外误差
+     *
+     * @param other DDSketchQuantiles
+     */
+    public void merge(Quantiles other) {
+        if (other == this) {
+            throw new IllegalArgumentException("can not merge a sketch into itself");
+        }
+        if (!(other instanceof DDSketchQuantiles)) {
+            throw new IllegalArgumentException("can not merge " + other.getClass().getName());
+        }
+
+        DDSketchQuantiles source = (DDSketchQuantiles) other;
+        if (!mapping.isCompatible(source.mapping)) {
+            throw new IllegalArgumentException("incompatible mapping: " + mapping + " != " + source.mapping);
+        }
+
+        Store otherPositive;
+        Store otherNegative;
+        long otherZeroCount;
+        source.lock.lock();
+        try {
+            otherPositive = source.positive.copy();
+            otherNegative = source.negative.copy();
+            otherZeroCount = source.zeroCount;
+        } finally {
+            source.lock.unlock();
+        }
+
+        lock.lock();
+        try {
+            positive = addAll(positive, otherPositive);
+            negative = addAll(negative, otherNegative);
+            zeroCount += otherZeroCount;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 合并多个 sketch，结果使用第一个 sketch 的 IndexMapping 和 maxBuckets，输入本身不变
+     */
+    public static DDSketchQuantiles merge(Collection<? extends Quantiles> sketches) {
+        if (sketches.isEmpty()) {
+            throw new IllegalArgumentException("no sketches to merge");
+        }
+
+        DDSketchQuantiles merged = null;
+        for (Quantiles sketch : sketches) {
+            if (!(sketch instanceof DDSketchQuantiles)) {
+                throw new IllegalArgumentException("can not merge " + sketch.getClass().getName());
+            }
+            if (merged == null) {
+                DDSketchQuantiles first = (DDSketchQuantiles) sketch;
+                merged = new DDSketchQuantiles(first.quantiles, first.mapping, first.maxBuckets);
+            }
+            merged.merge(sketch);
+        }
+        return merged;
+    }
+
+    /**
+     * 按值升序：负数（index 降序）、0、正数（index 升序）
+     */
+    @Override
+    public double get(double q) {
+        lock.lock();
+        try {
+            return valueAt(q);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void getAll(double[] qs, double[] out) {
+        lock.lock();
+        try {
+            if (count() == 0) {
+                Arrays.fill(out, 0, qs.length, Double.NaN);
+                return;
+            }
+            for (int i = 0; i < qs.length; i++) {
+                out[i] = valueAt(qs[i]);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public Collection<Double> monitored() {
+        return registered;
+    }
+
+    /**
+     * 没有 buffer，数据写入后立即可见
+     */
+    @Override
+    public void flushBuffer() {
+    }
+
+    /**
+     * 非空 bucket 的个数，0 算一个 bucket
+     */
+    @Override
+    public int getSampleSize() {
+        lock.lock();
+        try {
+            return positive.size() + negative.size() + (zeroCount > 0 ? 1 : 0);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public long getCount() {
+        lock.lock();
+        try {
+            return count();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 正数的 store 是否已经转换为 DenseStore
+     */
+    public boolean isDense() {
+        lock.lock();
+        try {
+            return positive instanceof DenseStore;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 是否因为超过 maxBuckets 合并过最低的 bucket，合并后最小的那部分百分位不再保证相对误差
+     */
+    public boolean isCollapsed() {
+        lock.lock();
+        try {
+            return isCollapsed(positive) || isCollapsed(negative);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public IndexMapping getMapping() {
+        return mapping;
+    }
+
+    public Quantile[] getQuantiles() {
+        return quantiles;
+    }
+
+    private long count() {
+        return positive.count() + negative.count() + zeroCount;
+    }
+
+    private double valueAt(double q) {
+        long count = count();
+        if (count == 0) {
+            return Double.NaN;
+        }
+
+        long rank = (long) (q * count);
+        if (rank >= count) {
+            rank = count - 1;
+        } else if (rank < 0) {
+            rank = 0;
+        }
+
+        long negativeCount = negative.count();
+        if (rank < negativeCount) {
+            return -mapping.value(negative.indexAtRank(negativeCount - 1 - rank));
+        }
+        rank -= negativeCount;
+        if (rank < zeroCount) {
+            return 0;
+        }
+        return mapping.value(positive.indexAtRank(rank - zeroCount));
+    }
+
+    private static boolean isCollapsed(Store store) {
+        return store instanceof DenseStore && ((DenseStore) store).isCollapsed();
+    }
+
+    private Store add(Store store, int index, long count) {
+        store.add(index, count);
+        return densifyIfNeeded(store);
+    }
+
+    private Store addAll(Store store, Store other) {
+        if (store instanceof SparseStore && other instanceof DenseStore) {
+            store = ((SparseStore) store).toDense(maxBuckets);
+        }
+        other.addTo(store);
+        return densifyIfNeeded(store);
+    }
+
+    private Store densifyIfNeeded(Store store) {
+        if (store instanceof SparseStore && ((SparseStore) store).shouldDensify(maxBuckets)) {
+            return ((SparseStore) store).toDense(maxBuckets);
+        }
+        return store;
+    }
+
+}
@@ -0,0 +1,183 @@
+package scyuan.quantiles.ddsketch;
+
+import java.util.Arrays;
+
+/**
+ * 连续 index 的计数保存在 long[] 中，counts[i] 对应 index = offset + i
+ * 1. index 范围超出数组时扩容或原地平移，数组长度不超过 maxBuckets
+ * 2. 非空 index 的范围超过 maxBuckets 时，把最低的 bucket 合并到允许的最低 bucket，
+ *    只影响最小的那部分百分位，高百分位的相对误差不变
+ *
+ * @author yuan.shichao
+ */
+final class DenseStore extends Store {
+
+    static final int INITIAL_LENGTH = 128;
+
+    private final int maxBuckets;
+
+    private long[] counts;
+
+    private int offset;
+
+    private int minIndex = Integer.MAX_VALUE;
+    private int maxIndex = Integer.MIN_VALUE;
+
+    private long count = 0;
+
+    /**
+     * 是否合并过低位的 bucket
+     */
+    private boolean collapsed = false;
+
+    DenseStore(int maxBuckets) {
+        this.maxBuckets = maxBuckets;
+        this.counts = new long[Math.min(INITIAL_LENGTH, maxBuckets)];
+    }
+
+    @Override
+    void add(int index, long count) {
+        if (count == 0) {
+            return;
+        }
+
+        if (this.count == 0) {
+            offset = index - counts.length / 2;
+            minIndex = index;
+            maxIndex = index;
+        } else if (index > maxIndex) {
+            int lowest = lowestAllowed(index);
+            if (minIndex < lowest) {
+                collapseBelow(lowest, index);
+            } else {
+                ensureWindow(minIndex, index);
+            }
+            maxIndex = index;
+        } else if (index < minIndex) {
+            int lowest = lowestAllowed(maxIndex);
+            if (index < lowest) {
+                index = lowest;
+                collapsed = true;
+            }
+            ensureWindow(index, maxIndex);
+            minIndex = Math.min(minIndex, index);
+        }
+
+        counts[index - offset] += count;
+        this.count += count;
+    }
+
+    @Override
+    long count() {
+        return count;
+    }
+
+    @Override
+    int size() {
+        int size = 0;
+        for (int index = minIndex; index <= maxIndex; index++) {
+            if (counts[index - offset] != 0) {
+                size++;
+            }
+        }
+        return size;
+    }
+
+    @Override
+    int indexAtRank(long rank) {
+        long cumulative = 0;
+        for (int index = minIndex; index < maxIndex; index++) {
+            cumulative += counts[index - offset];
+            if (cumulative > rank) {
+                return index;
+            }
+        }
+        return maxIndex;
+    }
+
+    @Override
+    void addTo(Store target) {
+        for (int index = minIndex; index <= maxIndex; index++) {
+            long c = counts[index - offset];
+            if (c != 0) {
+                target.add(index, c);
+            }
+        }
+    }
+
+    @Override
+    Store copy() {
+        DenseStore copy = new DenseStore(maxBuckets);
+        copy.counts = counts.clone();
+        copy.offset = offset;
+        copy.minIndex = minIndex;
+        copy.maxIndex = maxIndex;
+        copy.count = count;
+        copy.collapsed = collapsed;
+        return copy;
+    }
+
+    boolean isCollapsed() {
+        return collapsed;
+    }
+
+    /**
+     * 最高 index 为 highest 时允许的最低 index
+     */
+    private int lowestAllowed(int highest) {
+        return (int) Math.max(Integer.MIN_VALUE + 1L, (long) highest - maxBuckets + 1);
+    }
+
+    /**
+     * 把 [minIndex, lowest) 的计数合并到 lowest，之后窗口覆盖 [lowest, highest]
+     */
+    private void collapseBelow(int lowest, int highest) {
+        long collapsedCount = 0;
+        int to = Math.min(maxIndex, lowest - 1);
+        for (int index = minIndex; index <= to; index++) {
+            collapsedCount += counts[index - offset];
+            counts[index - offset] = 0;
+        }
+
+        // 整个旧范围都被合并时，原来的数据已经清零，只需要移动窗口
+        minIndex = lowest;
+        if (maxIndex < lowest) {
+            maxIndex = lowest;
+        }
+        ensureWindow(lowest, highest);
+        counts[lowest - offset] += collapsedCount;
+        collapsed = true;
+    }
+
+    /**
+     * 保证 [low, high] 在数组窗口内，high - low + 1 不超过 maxBuckets；数据在 [minIndex, maxIndex]，位于 [low, high] 内
+     */
+    private void ensureWindow(int low, int high) {
+        if (low >= offset && high < offset + counts.length) {
+            return;
+        }
+
+        int needed = high - low + 1;
+        int length = counts.length >= needed ? counts.length : Math.max(needed, Math.min(counts.length * 2, maxBuckets));
+        int newOffset = low - (length - needed) / 2;
+
+        int from = Math.max(minIndex, offset);
+        int to = Math.min(maxIndex, offset + counts.length - 1);
+        if (length == counts.length) {
+            if (from <= to) {
+                System.arraycopy(counts, from - offset, counts, from - newOffset, to - from + 1);
+                Arrays.fill(counts, 0, from - newOffset, 0);
+                Arrays.fill(counts, to - newOffset + 1, length, 0);
+            } else {
+                Arrays.fill(counts, 0);
+            }
+        } else {
+            long[] grown = new long[length];
+            if (from <= to) {
+                System.arraycopy(counts, from - offset, grown, from - newOffset, to - from + 1);
+            }
+            counts = grown;
+        }
+        offset = newOffset;
+    }
+}
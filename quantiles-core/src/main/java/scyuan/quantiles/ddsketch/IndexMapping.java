@@ -0,0 +1,123 @@
+package scyuan.quantiles.ddsketch;
+
+/**
+ * DDSketch 中值到 bucket index 的映射，相对误差不超过 relativeAccuracy
+ * 1. logarithmic: index = ceil(ln(v) / ln(γ))，γ = (1 + α) / (1 - α)，bucket 最少
+ * 2. linearInterpolated: 用 double 的指数位和尾数近似 log2(v)，不调用 Math.log，bucket 个数约为前者的 1.44 倍
+ *
+ * @author yuan.shichao
+ */
+public abstract class IndexMapping {
+
+    private static final long MANTISSA_MASK = (1L << 52) - 1;
+
+    final double relativeAccuracy;
+
+    /**
+     * 每个单位的 log 对应的 bucket 个数
+     */
+    final double multiplier;
+
+    private IndexMapping(double relativeAccuracy) {
+        if (!(relativeAccuracy >= 1e-6 && relativeAccuracy < 1)) {
+            throw new IllegalArgumentException("relativeAccuracy must be in [1e-6, 1): " + relativeAccuracy);
+        }
+        this.relativeAccuracy = relativeAccuracy;
+        this.multiplier = 1 / Math.log((1 + relativeAccuracy) / (1 - relativeAccuracy));
+    }
+
+    public static IndexMapping logarithmic(double relativeAccuracy) {
+        return new Logarithmic(relativeAccuracy);
+    }
+
+    public static IndexMapping linearInterpolated(double relativeAccuracy) {
+        return new LinearInterpolated(relativeAccuracy);
+    }
+
+    public double getRelativeAccuracy() {
+        return relativeAccuracy;
+    }
+
+    /**
+     * 绝对值小于它的值计为 0，保证 index 在 int 范围内
+     */
+    double minIndexableValue() {
+        return Double.MIN_NORMAL;
+    }
+
+    /**
+     * v 不小于 minIndexableValue
+     */
+    abstract int index(double v);
+
+    /**
+     * bucket 上下界的调和平均，与 bucket 内任意值的相对误差不超过 relativeAccuracy
+     */
+    abstract double value(int index);
+
+    boolean isCompatible(IndexMapping other) {
+        return getClass() == other.getClass() && multiplier == other.multiplier;
+    }
+
+    private static double harmonicMean(double lower, double upper) {
+        return 2 * lower * upper / (lower + upper);
+    }
+
+    private static final class Logarithmic extends IndexMapping {
+
+        Logarithmic(double relativeAccuracy) {
+            super(relativeAccuracy);
+        }
+
+        @Override
+        int index(double v) {
+            return (int) Math.ceil(Math.log(v) * multiplier);
+        }
+
+        @Override
+        double value(int index) {
+            return harmonicMean(Math.exp((index - 1) / multiplier), Math.exp(index / multiplier));
+        }
+
+        @Override
+        public String toString() {
+            return String.format("IndexMapping{logarithmic, alpha=%s}", relativeAccuracy);
+        }
+    }
+
+    /**
+     * v = m * 2^e，m 在 [1, 2)，用 e + (m - 1) 近似 log2(v)；它对 ln(v) 的导数为 m，不小于 1，
+     * 所以近似值每增加 1 / multiplier，ln(v) 最多增加 ln(γ)，每个 bucket 的上下界之比不超过 γ
+     */
+    private static final class LinearInterpolated extends IndexMapping {
+
+        LinearInterpolated(double relativeAccuracy) {
+            super(relativeAccuracy);
+        }
+
+        @Override
+        int index(double v) {
+            return (int) Math.ceil(log2(v) * multiplier);
+        }
+
+        @Override
+        double value(int index) {
+            return harmonicMean(pow2((index - 1) / multiplier), pow2(index / multiplier));
+        }
+
+        private static double log2(double v) {
+            long bits = Double.doubleToRawLongBits(v);
+            return Math.getExponent(v) + (bits & MANTISSA_MASK) / (double) (1L << 52);
+        }
+
+        private static double pow2(double x) {
+            int exponent = (int) Math.floor(x);
+            return Math.scalb(1 + x - exponent, exponent);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("IndexMapping{linearInterpolated, alpha=%s}", relativeAccuracy);
+        }
+    }
+}
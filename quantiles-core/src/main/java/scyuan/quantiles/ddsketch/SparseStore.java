@@ -0,0 +1,168 @@
+package scyuan.quantiles.ddsketch;
+
+import java.util.Arrays;
+
+/**
+ * 数据较少时使用的 store，开放寻址哈希表，key 和计数分别保存在 int[] 和 long[] 中
+ * 非空 bucket 占 index 范围的比例较高时改用 DenseStore，见 shouldDensify
+ *
+ * @author yuan.shichao
+ */
+final class SparseStore extends Store {
+
+    private static final int EMPTY = Integer.MIN_VALUE;
+
+    private int[] keys;
+    private long[] counts;
+
+    private int size = 0;
+
+    private long count = 0;
+
+    private int minIndex = Integer.MAX_VALUE;
+    private int maxIndex = Integer.MIN_VALUE;
+
+    /**
+     * 查询用的有序 key，新增 key 后重建
+     */
+    private int[] sortedKeys = new int[0];
+    private boolean sorted = true;
+
+    SparseStore() {
+        this(16);
+    }
+
+    private SparseStore(int capacity) {
+        keys = new int[capacity];
+        counts = new long[capacity];
+        Arrays.fill(keys, EMPTY);
+    }
+
+    @Override
+    void add(int index, long count) {
+        if (count == 0) {
+            return;
+        }
+
+        int slot = slot(keys, index);
+        if (keys[slot] == EMPTY) {
+            keys[slot] = index;
+            size++;
+            sorted = false;
+            minIndex = Math.min(minIndex, index);
+            maxIndex = Math.max(maxIndex, index);
+            if (size * 2 > keys.length) {
+                rehash(keys.length * 2);
+                slot = slot(keys, index);
+            }
+        }
+        counts[slot] += count;
+        this.count += count;
+    }
+
+    @Override
+    long count() {
+        return count;
+    }
+
+    @Override
+    int size() {
+        return size;
+    }
+
+    @Override
+    int indexAtRank(long rank) {
+        sortIfNeeded();
+        long cumulative = 0;
+        for (int i = 0; i < size; i++) {
+            int key = sortedKeys[i];
+            cumulative += counts[slot(keys, key)];
+            if (cumulative > rank) {
+                return key;
+            }
+        }
+        return sortedKeys[size - 1];
+    }
+
+    @Override
+    void addTo(Store target) {
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] != EMPTY) {
+                target.add(keys[i], counts[i]);
+            }
+        }
+    }
+
+    @Override
+    Store copy() {
+        SparseStore copy = new SparseStore(keys.length);
+        System.arraycopy(keys, 0, copy.keys, 0, keys.length);
+        System.arraycopy(counts, 0, copy.counts, 0, counts.length);
+        copy.size = size;
+        copy.count = count;
+        copy.minIndex = minIndex;
+        copy.maxIndex = maxIndex;
+        copy.sorted = false;
+        return copy;
+    }
+
+    /**
+     * 哈希表每个槽占 12 字节，DenseStore 每个 index 占 8 字节（至少 INITIAL_LENGTH 个），
+     * 哈希表占用不少于同样范围的 DenseStore，或者 bucket 个数达到 maxBuckets 时转换
+     */
+    boolean shouldDensify(int maxBuckets) {
+        long span = Math.max((long) maxIndex - minIndex + 1, Math.min(DenseStore.INITIAL_LENGTH, maxBuckets));
+        return keys.length * 12L >= span * 8 || size >= maxBuckets;
+    }
+
+    DenseStore toDense(int maxBuckets) {
+        DenseStore dense = new DenseStore(maxBuckets);
+        addTo(dense);
+        return dense;
+    }
+
+    private void sortIfNeeded() {
+        if (sorted) {
+            return;
+        }
+
+        if (sortedKeys.length < size) {
+            sortedKeys = new int[keys.length];
+        }
+        int n = 0;
+        for (int key : keys) {
+            if (key != EMPTY) {
+                sortedKeys[n++] = key;
+            }
+        }
+        Arrays.sort(sortedKeys, 0, n);
+        sorted = true;
+    }
+
+    private void rehash(int capacity) {
+        int[] oldKeys = keys;
+        long[] oldCounts = counts;
+        keys = new int[capacity];
+        counts = new long[capacity];
+        Arrays.fill(keys, EMPTY);
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != EMPTY) {
+                int slot = slot(keys, oldKeys[i]);
+                keys[slot] = oldKeys[i];
+                counts[slot] = oldCounts[i];
+            }
+        }
+    }
+
+    /**
+     * key 所在的槽，不存在时为第一个空槽；容量为 2 的幂且装载率不超过 1/2
+     */
+    private static int slot(int[] keys, int key) {
+        int mask = keys.length - 1;
+        int slot = (key * 0x9E3779B9) >>> (32 - Integer.numberOfTrailingZeros(keys.length));
+        while (keys[slot] != EMPTY && keys[slot] != key) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+}
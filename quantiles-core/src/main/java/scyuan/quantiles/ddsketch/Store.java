@@ -0,0 +1,33 @@
+package scyuan.quantiles.ddsketch;
+
+/**
+ * bucket index 到计数的映射，非线程安全，由 DDSketchQuantiles 加锁
+ *
+ * @author yuan.shichao
+ */
+abstract class Store {
+
+    abstract void add(int index, long count);
+
+    /**
+     * 所有 bucket 的计数之和
+     */
+    abstract long count();
+
+    /**
+     * 非空 bucket 的个数
+     */
+    abstract int size();
+
+    /**
+     * 按 index 升序累计，第一个累计计数大于 rank 的 index，调用方保证 rank 小于 count()
+     */
+    abstract int indexAtRank(long rank);
+
+    /**
+     * 把所有 bucket 加到 target，当前 store 不变
+     */
+    abstract void addTo(Store target);
+
+    abstract Store copy();
+}
@@ -0,0 +1,344 @@
+package scyuan.quantiles.gk;
+
+import scyuan.quantiles.Quantiles;
+import scyuan.quantiles.ckms.BatchQuery;
+import scyuan.quantiles.ckms.Quantile;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 线程安全，按照 "Space-Efficient Online Computation of Quantile Summaries" (Greenwald, Khanna, SIGMOD 2001) 实现
+ * 1. 所有百分位的 rank 误差都是 ε·n，不需要 CKMS 的逐个 Quantile 计算 f(r, n)，适合查询任意百分位
+ * 2. value/g/delta 分别保存在 primitive 数组中，与 CKMSQuantilesPrimitive 相同：buffer 满后排序，与摘要归并写入备用数组
+ * 3. compress 按 delta 分 band，从后向前单次扫描，把 band 不大于后继的元组连同它的子孙一起合并进后继，
+ *    元组个数为 O(1/ε · log(ε·n))
+ *
+ * @author yuan.shichao
+ */
+public class GKQuantiles implements Quantiles {
+
+    private final double epsilon;
+
+    private final double[] buffer;
+
+    private int bufferCount = 0;
+
+    private long count = 0;
+
+    private int size = 0;
+
+    private double[] values;
+    private long[] gs;
+    private long[] deltas;
+
+    /**
+     * insertBatch 的归并目标，与上面三个数组交替使用
+     */
+    private double[] mergeValues;
+    private long[] mergeGs;
+    private long[] mergeDeltas;
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    /**
+     * 只使用 quantile，error 统一为 epsilon
+     */
+    private final Quantile quantiles[];
+
+    private final Collection<Double> registered;
+
+    /**
+     * epsilon 取 quantiles 中最小的 error
+     */
+    public GKQuantiles(Quantile[] quantiles) {
+        this(quantiles, minError(quantiles));
+    }
+
+    public GKQuantiles(Quantile[] quantiles, double epsilon) {
+        if (!(epsilon > 0 && epsilon < 1)) {
+            throw new IllegalArgumentException("epsilon must be in (0, 1): " + epsilon);
+        }
+        this.quantiles = quantiles;
+        this.epsilon = epsilon;
+
+        registered = new ArrayList<>();
+        for (Quantile quantile : quantiles) {
+            registered.add(quantile.getQuantile());
+        }
+
+        buffer = new double[200];
+        values = new double[buffer.length];
+        gs = new long[buffer.length];
+        deltas = new long[buffer.length];
+        mergeValues = new double[buffer.length];
+        mergeGs = new long[buffer.length];
+        mergeDeltas = new long[buffer.length];
+    }
+
+    @Override
+    public void observe(double value) {
+        lock.lock();
+        try {
+            buffer[bufferCount++] = value;
+            if (bufferCount == buffer.length) {
+                insertBatch();
+                compress();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public double get(double q) {
+        lock.lock();
+        try {
+            if (size == 0) {
+                return Double.NaN;
+            }
+
+            double threshold = (long) (q * count) + epsilon * count;
+            long rankMin = 0;
+            for (int i = 1; i < size; i++) {
+                rankMin += gs[i - 1];
+                if (rankMin + gs[i] + deltas[i] > threshold) {
+                    return values[i - 1];
+                }
+            }
+            return values[size - 1];
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 阈值随百分位单调，按百分位从小到大扫描一次，结果与逐个调用 get 相同
+     */
+    @Override
+    public void getAll(double[] qs, double[] out) {
+        lock.lock();
+        try {
+            if (size == 0) {
+                Arrays.fill(out, 0, qs.length, Double.NaN);
+                return;
+            }
+
+            int i = 1;
+            long rankMin = gs[0];
+            for (int k : BatchQuery.order(qs)) {
+                double threshold = (long) (qs[k] * count) + epsilon * count;
+                while (i < size && rankMin + gs[i] + deltas[i] <= threshold) {
+                    rankMin += gs[i];
+                    i++;
+                }
+                out[k] = values[i - 1];
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public Collection<Double> monitored() {
+        return registered;
+    }
+
+    @Override
+    public void flushBuffer() {
+        lock.lock();
+        try {
+            if (bufferCount > 0) {
+                insertBatch();
+                compress();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int getSampleSize() {
+        lock.lock();
+        try {
+            return size;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 不包含 buffer 中的数据
+     */
+    @Override
+    public long getCount() {
+        lock.lock();
+        try {
+            return count;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public double getEpsilon() {
+        return epsilon;
+    }
+
+    public Quantile[] getQuantiles() {
+        return quantiles;
+    }
+
+    /**
+     * 排序 buffer，与现有摘要归并一次写入备用数组；
+     * 新元组的 delta 为 floor(2εn)，位于两端时为 0
+     */
+    private void insertBatch() {
+        Arrays.sort(buffer, 0, bufferCount);
+        ensureMergeCapacity(size + bufferCount);
+
+        int sampleIndex = 0;
+        int out = 0;
+        for (int i = 0; i < bufferCount; i++) {
+            double v = buffer[i];
+
+            while (sampleIndex < size && values[sampleIndex] < v) {
+                mergeValues[out] = values[sampleIndex];
+                mergeGs[out] = gs[sampleIndex];
+                mergeDeltas[out] = deltas[sampleIndex];
+                sampleIndex++;
+                out++;
+            }
+
+            mergeValues[out] = v;
+            mergeGs[out] = 1;
+            mergeDeltas[out] = (out == 0 || sampleIndex == size) ? 0 : (long) Math.floor(2 * epsilon * count);
+            out++;
+
+            count++;
+        }
+
+        int remaining = size - sampleIndex;
+        System.arraycopy(values, sampleIndex, mergeValues, out, remaining);
+        System.arraycopy(gs, sampleIndex, mergeGs, out, remaining);
+        System.arraycopy(deltas, sampleIndex, mergeDeltas, out, remaining);
+
+        double[] outValues = mergeValues;
+        long[] outGs = mergeGs;
+        long[] outDeltas = mergeDeltas;
+        mergeValues = values;
+        mergeGs = gs;
+        mergeDeltas = deltas;
+        values = outValues;
+        gs = outGs;
+        deltas = outDeltas;
+
+        size = out + remaining;
+        bufferCount = 0;
+    }
+
+    /**
+     * 从后向前扫描一次，write 之后为已保留的元组，当前保留的后继元组放在局部变量中；
+     * read 处的元组 band 不大于后继时，向前找出 band 更小的连续元组（它的子孙），
+     * 整组的 g 加上后继的 g + delta 不超过 floor(2εn) 就整组并入后继。第一个元组（最小值）始终保留
+     */
+    private void compress() {
+        if (size < 3) {
+            return;
+        }
+
+        long p = (long) Math.floor(2 * epsilon * count);
+
+        int write = size - 1;
+        double value = values[write];
+        long g = gs[write];
+        long delta = deltas[write];
+        int band = band(delta, p);
+
+        int read = size - 2;
+        while (read >= 1) {
+            int readBand = band(deltas[read], p);
+            if (readBand <= band) {
+                int start = read;
+                long groupG = gs[read];
+                while (start > 1 && band(deltas[start - 1], p) < readBand) {
+                    start--;
+                    groupG += gs[start];
+                }
+                if (groupG + g + delta <= p) {
+                    g += groupG;
+                    read = start - 1;
+                    continue;
+                }
+            }
+
+            values[write] = value;
+            gs[write] = g;
+            deltas[write] = delta;
+            write--;
+
+            value = values[read];
+            g = gs[read];
+            delta = deltas[read];
+            band = readBand;
+            read--;
+        }
+
+        values[write] = value;
+        gs[write] = g;
+        deltas[write] = delta;
+        write--;
+        // 第一个元组
+        values[write] = values[0];
+        gs[write] = gs[0];
+        deltas[write] = deltas[0];
+
+        int newSize = size - write;
+        if (write > 0) {
+            System.arraycopy(values, write, values, 0, newSize);
+            System.arraycopy(gs, write, gs, 0, newSize);
+            System.arraycopy(deltas, write, deltas, 0, newSize);
+        }
+        size = newSize;
+    }
+
+    /**
+     * delta 所在的 band：band 0 为 delta = p，band α (α ≥ 1) 为
+     * p - 2^α - (p mod 2^α) < delta ≤ p - 2^(α-1) - (p mod 2^(α-1))；
+     * p - delta 在 [2^(α-1), 2^(α+1)) 内，所以只需要检查 floor(log2(p - delta)) 和它加一
+     */
+    static int band(long delta, long p) {
+        long diff = p - delta;
+        if (diff <= 0) {
+            return 0;
+        }
+
+        int alpha = 63 - Long.numberOfLeadingZeros(diff);
+        long twoAlpha = 1L << alpha;
+        if (alpha > 0 && diff < twoAlpha + (p & (twoAlpha - 1))) {
+            return alpha;
+        }
+        return alpha + 1;
+    }
+
+    private void ensureMergeCapacity(int capacity) {
+        if (mergeValues.length >= capacity) {
+            return;
+        }
+
+        int newCapacity = Math.max(capacity, mergeValues.length * 2);
+        mergeValues = new double[newCapacity];
+        mergeGs = new long[newCapacity];
+        mergeDeltas = new long[newCapacity];
+    }
+
+    private static double minError(Quantile[] quantiles) {
+        double min = 1;
+        for (Quantile quantile : quantiles) {
+            min = Math.min(min, quantile.getError());
+        }
+        return min;
+    }
+
+}
@@ -0,0 +1,293 @@
+package scyuan.quantiles.histogram;
+
+import scyuan.quantiles.Quantiles;
+import scyuan.quantiles.ckms.Quantile;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 线程安全，参考 HdrHistogram 的 log-linear 直方图，适合取值为正、范围已知、只需要 1 到 2 位有效数字的数据（例如延迟）
+ * 1. bucket 划分见 LogLinearLayout，observe 只有一次位运算得到 index 和一次原子自增，不加锁，不分配内存
+ * 2. 计数保存在按 stripe 分段的 AtomicLongArray 中，线程按 id 选择 stripe，减少同一 bucket 的 cache line 争用；
+ *    每个 stripe 都是一份完整的 bucket 计数，默认最多 DEFAULT_MAX_STRIPES 个，避免内存随 CPU 核数增长
+ * 3. get 对所有 stripe 累计扫描，返回 bucket 中点，相对误差由有效数字位数决定，与 Quantile 的 error 无关
+ * 4. intervalSnapshot 返回与上一次 intervalSnapshot 之间的数据，写线程不受影响
+ *
+ * @author yuan.shichao
+ */
+public class HistogramQuantiles implements Quantiles {
+
+    /**
+     * 默认构造函数的 stripe 个数上限，4 个 stripe 已经能分散大部分争用
+     */
+    public static final int DEFAULT_MAX_STRIPES = 4;
+
+    private final LogLinearLayout layout;
+
+    private final double lowest;
+
+    private final double highest;
+
+    private final int significantDigits;
+
+    private final int bucketCount;
+
+    private final int stripeMask;
+
+    /**
+     * 第 s 个 stripe 的计数在 [s * bucketCount, (s + 1) * bucketCount)
+     */
+    private final AtomicLongArray counts;
+
+    private final ReentrantLock intervalLock = new ReentrantLock();
+
+    /**
+     * 上一次 intervalSnapshot 时各 bucket 的总计数，只在 intervalLock 下访问
+     */
+    private long[] lastInterval;
+
+    /**
+     * 只使用 quantile，error 由 significantDigits 决定
+     */
+    private final Quantile quantiles[];
+
+    private final Collection<Double> registered;
+
+    /**
+     * stripe 个数为 min(CPU 核数, DEFAULT_MAX_STRIPES)，每个 stripe 占用 bucket 个数 * 8 字节，
+     * 例如 [1, 1e10]、2 位有效数字时有 4352 个 bucket，每个 stripe 约 34KB，4 个 stripe 约 136KB
+     */
+    public HistogramQuantiles(Quantile[] quantiles, double lowest, double highest, int significantDigits) {
+        this(quantiles, lowest, highest, significantDigits,
+                Math.min(Runtime.getRuntime().availableProcessors(), DEFAULT_MAX_STRIPES));
+    }
+
+    /**
+     * @param lowest 可以区分的最小值，大于 0
+     * @param highest 可以区分的最大值，更大的值计入最后一个 bucket
+     * @param significantDigits 有效数字位数，1 到 5
+     * @param stripes stripe 个数，向上取整到 2 的幂，每个 stripe 占用 bucket 个数 * 8 字节，
+     *                总内存占用为 stripes * bucket 个数 * 8 字节
+     */
+    public HistogramQuantiles(Quantile[] quantiles, double lowest, double highest, int significantDigits, int stripes) {
+        if (stripes < 1) {
+            throw new IllegalArgumentException("stripes must be positive: " + stripes);
+        }
+        this.quantiles = quantiles;
+        this.lowest = lowest;
+        this.highest = highest;
+        this.significantDigits = significantDigits;
+
+        registered = new ArrayList<>();
+        for (Quantile quantile : quantiles) {
+            registered.add(quantile.getQuantile());
+        }
+
+        layout = new LogLinearLayout(lowest, highest, significantDigits);
+        bucketCount = layout.bucketCount();
+
+        int stripeCount = powerOfTwo(stripes);
+        if ((long) stripeCount * bucketCount > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("too many buckets: " + stripeCount + " * " + bucketCount);
+        }
+        stripeMask = stripeCount - 1;
+        counts = new AtomicLongArray(stripeCount * bucketCount);
+        lastInterval = new long[bucketCount];
+    }
+
+    @Override
+    public void observe(double value) {
+        if (Double.isNaN(value)) {
+            return;
+        }
+
+        int stripe = (int) Thread.currentThread().getId() & stripeMask;
+        counts.getAndIncrement(stripe * bucketCount + layout.index(value));
+    }
+
+    /**
+     * 两次扫描所有 stripe，第一次得到总数，第二次找到 rank 所在的 bucket，不分配内存
+     */
+    @Override
+    public double get(double q) {
+        long count = getCount();
+        if (count == 0) {
+            return Double.NaN;
+        }
+
+        long rank = (long) (q * count);
+        if (rank >= count) {
+            rank = count - 1;
+        }
+
+        long cumulative = 0;
+        for (int i = 0; i < bucketCount; i++) {
+            cumulative += countAt(i);
+            if (cumulative > rank) {
+                return layout.value(i);
+            }
+        }
+        // 两次扫描之间有新的数据写入
+        return layout.value(bucketCount - 1);
+    }
+
+    /**
+     * 基于同一个快照回答所有百分位
+     */
+    @Override
+    public void getAll(double[] qs, double[] out) {
+        snapshot().getAll(qs, out);
+    }
+
+    @Override
+    public Collection<Double> monitored() {
+        return registered;
+    }
+
+    /**
+     * 没有 buffer，数据写入后立即可见
+     */
+    @Override
+    public void flushBuffer() {
+    }
+
+    /**
+     * 非空 bucket 的个数
+     */
+    @Override
+    public int getSampleSize() {
+        int size = 0;
+        for (int i = 0; i < bucketCount; i++) {
+            if (countAt(i) > 0) {
+                size++;
+            }
+        }
+        return size;
+    }
+
+    @Override
+    public long getCount() {
+        long count = 0;
+        for (int i = 0, length = counts.length(); i < length; i++) {
+            count += counts.get(i);
+        }
+        return count;
+    }
+
+    /**
+     * 当前所有数据的快照，写入与读取同时进行时，快照包含其中一部分
+     */
+    public HistogramSnapshot snapshot() {
+        return new HistogramSnapshot(layout, totals());
+    }
+
+    /**
+     * 与上一次 intervalSnapshot（第一次调用时为创建时）之间的数据，
+     * 并发写入的数据不会丢失也不会重复，只会计入这一次或下一次
+     */
+    public HistogramSnapshot intervalSnapshot() {
+        intervalLock.lock();
+        try {
+            long[] totals = totals();
+            long[] interval = new long[bucketCount];
+            for (int i = 0; i < bucketCount; i++) {
+                interval[i] = totals[i] - lastInterval[i];
+            }
+            lastInterval = totals;
+            return new HistogramSnapshot(layout, interval);
+        } finally {
+            intervalLock.unlock();
+        }
+    }
+
+    /**
+     * 把 other 的数据加进来，other 本身不变，bucket 划分必须相同
+     *
+     * @param other HistogramQuantiles
+     */
+    public void merge(Quantiles other) {
+        if (other == this) {
+            throw new IllegalArgumentException("can not merge a histogram into itself");
+        }
+        if (!(other instanceof HistogramQuantiles)) {
+            throw new IllegalArgumentException("can not merge " + other.getClass().getName());
+        }
+        merge(((HistogramQuantiles) other).snapshot());
+    }
+
+    /**
+     * 把快照的数据加进来，例如其他实例的 intervalSnapshot
+     */
+    public void merge(HistogramSnapshot snapshot) {
+        if (!layout.isCompatible(snapshot.layout())) {
+            throw new IllegalArgumentException("incompatible layout: " + layout + " != " + snapshot.layout());
+        }
+
+        for (int i = 0; i < bucketCount; i++) {
+            long count = snapshot.countAt(i);
+            if (count != 0) {
+                counts.getAndAdd(i, count);
+            }
+        }
+    }
+
+    /**
+     * 合并多个直方图，结果使用第一个直方图的参数，输入本身不变
+     */
+    public static HistogramQuantiles merge(Collection<? extends Quantiles> histograms) {
+        if (histograms.isEmpty()) {
+            throw new IllegalArgumentException("no histograms to merge");
+        }
+
+        HistogramQuantiles merged = null;
+        for (Quantiles histogram : histograms) {
+            if (!(histogram instanceof HistogramQuantiles)) {
+                throw new IllegalArgumentException("can not merge " + histogram.getClass().getName());
+            }
+            if (merged == null) {
+                HistogramQuantiles first = (HistogramQuantiles) histogram;
+                merged = new HistogramQuantiles(first.quantiles, first.lowest, first.highest,
+                        first.significantDigits, first.stripeMask + 1);
+            }
+            merged.merge(histogram);
+        }
+        return merged;
+    }
+
+    public Quantile[] getQuantiles() {
+        return quantiles;
+    }
+
+    /**
+     * 第 index 个 bucket 在所有 stripe 中的计数之和
+     */
+    private long countAt(int index) {
+        long count = 0;
+        for (int i = index, length = counts.length(); i < length; i += bucketCount) {
+            count += counts.get(i);
+        }
+        return count;
+    }
+
+    private long[] totals() {
+        long[] totals = new long[bucketCount];
+        for (int s = 0, length = counts.length(); s < length; s += bucketCount) {
+            for (int i = 0; i < bucketCount; i++) {
+                totals[i] += counts.get(s + i);
+            }
+        }
+        return totals;
+    }
+
+    private static int powerOfTwo(int n) {
+        int stripes = 1;
+        while (stripes < n) {
+            stripes <<= 1;
+        }
+        return stripes;
+    }
+
+}
@@ -0,0 +1,108 @@
+package scyuan.quantiles.histogram;
+
+/**
+ * HistogramQuantiles 的不可变快照，可以是全部数据，也可以是两次 intervalSnapshot 之间的数据
+ * 1. 保存每个 bucket 的累计计数，查询时二分查找，O(log bucket 个数)
+ * 2. 相同 bucket 划分的快照可以合并，例如把多个实例同一时间段的快照汇总
+ *
+ * @author yuan.shichao
+ */
+public final class HistogramSnapshot {
+
+    private final LogLinearLayout layout;
+
+    /**
+     * cumulative[i] = counts[0] + ... + counts[i]
+     */
+    private final long[] cumulative;
+
+    /**
+     * @param counts 每个 bucket 的计数，原地转换为累计计数，调用方之后不再使用
+     */
+    HistogramSnapshot(LogLinearLayout layout, long[] counts) {
+        this.layout = layout;
+        for (int i = 1; i < counts.length; i++) {
+            counts[i] += counts[i - 1];
+        }
+        this.cumulative = counts;
+    }
+
+    public double get(double q) {
+        long count = getCount();
+        if (count == 0) {
+            return Double.NaN;
+        }
+
+        long rank = (long) (q * count);
+        if (rank >= count) {
+            rank = count - 1;
+        }
+
+        int low = 0;
+        int high = cumulative.length - 1;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (cumulative[mid] > rank) {
+                high = mid;
+            } else {
+                low = mid + 1;
+            }
+        }
+        return layout.value(low);
+    }
+
+    public void getAll(double[] qs, double[] out) {
+        for (int k = 0; k < qs.length; k++) {
+            out[k] = get(qs[k]);
+        }
+    }
+
+    public long getCount() {
+        return cumulative[cumulative.length - 1];
+    }
+
+    /**
+     * 非空 bucket 的个数
+     */
+    public int getSampleSize() {
+        int size = 0;
+        long prev = 0;
+        for (long c : cumulative) {
+            if (c != prev) {
+                size++;
+                prev = c;
+            }
+        }
+        return size;
+    }
+
+    /**
+     * 返回两个快照之和，bucket 划分必须相同
+     */
+    public HistogramSnapshot merge(HistogramSnapshot other) {
+        if (!layout.isCompatible(other.layout)) {
+            throw new IllegalArgumentException("incompatible layout: " + layout + " != " + other.layout);
+        }
+
+        long[] counts = new long[cumulative.length];
+        long prev = 0;
+        long otherPrev = 0;
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = cumulative[i] - prev + other.cumulative[i] - otherPrev;
+            prev = cumulative[i];
+            otherPrev = other.cumulative[i];
+        }
+        return new HistogramSnapshot(layout, counts);
+    }
+
+    /**
+     * 第 index 个 bucket 的计数
+     */
+    long countAt(int index) {
+        return index == 0 ? cumulative[0] : cumulative[index] - cumulative[index - 1];
+    }
+
+    LogLinearLayout layout() {
+        return layout;
+    }
+}
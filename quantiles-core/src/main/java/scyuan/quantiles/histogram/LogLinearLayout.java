@@ -0,0 +1,75 @@
+package scyuan.quantiles.histogram;
+
+/**
+ * HistogramQuantiles 和 HistogramSnapshot 共用的 bucket 划分
+ * 1. 按 2 的幂分段，每段再线性分成 2^subBits 个 bucket，相对误差不超过 2^-(subBits + 1)
+ * 2. index 直接取 double 的指数位和尾数的高 subBits 位，不需要 log 运算
+ * 3. 小于下界的值计入第一个 bucket，大于上界的值计入最后一个 bucket
+ *
+ * @author yuan.shichao
+ */
+final class LogLinearLayout {
+
+    private static final long MANTISSA_MASK = (1L << 52) - 1;
+
+    private final int minExponent;
+
+    private final int subBits;
+
+    private final int bucketCount;
+
+    /**
+     * @param lowest 大于 0
+     * @param highest 不小于 lowest
+     * @param significantDigits 有效数字位数，1 到 5
+     */
+    LogLinearLayout(double lowest, double highest, int significantDigits) {
+        if (!(lowest > 0) || Double.isInfinite(lowest)) {
+            throw new IllegalArgumentException("lowest must be positive: " + lowest);
+        }
+        if (!(highest >= lowest) || Double.isInfinite(highest)) {
+            throw new IllegalArgumentException("highest must not be less than lowest: " + highest);
+        }
+        if (significantDigits < 1 || significantDigits > 5) {
+            throw new IllegalArgumentException("significantDigits must be in [1, 5]: " + significantDigits);
+        }
+
+        this.minExponent = Math.getExponent(lowest);
+        this.subBits = (int) Math.ceil(significantDigits * Math.log(10) / Math.log(2));
+        int exponents = Math.getExponent(highest) - minExponent + 1;
+        this.bucketCount = exponents << subBits;
+    }
+
+    int bucketCount() {
+        return bucketCount;
+    }
+
+    int index(double value) {
+        int exponent = Math.getExponent(value);
+        if (!(value > 0) || exponent < minExponent) {
+            return 0;
+        }
+
+        long bits = Double.doubleToRawLongBits(value);
+        int index = ((exponent - minExponent) << subBits) | (int) ((bits & MANTISSA_MASK) >>> (52 - subBits));
+        return index < bucketCount ? index : bucketCount - 1;
+    }
+
+    /**
+     * bucket 的中点
+     */
+    double value(int index) {
+        int exponent = minExponent + (index >>> subBits);
+        int sub = index & ((1 << subBits) - 1);
+        return Math.scalb(1.0 + (sub + 0.5) / (1 << subBits), exponent);
+    }
+
+    boolean isCompatible(LogLinearLayout other) {
+        return minExponent == other.minExponent && subBits == other.subBits && bucketCount == other.bucketCount;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("LogLinearLayout{minExponent=%d, subBits=%d, buckets=%d}", minExponent, subBits, bucketCount);
+    }
+}
@@ -0,0 +1,594 @@
+package scyuan.quantiles.kll;
+
+import scyuan.quantiles.Quantiles;
+import scyuan.quantiles.ckms.Quantile;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 线程安全，按照 "Optimal Quantile Approximation in Streams" (Karnin, Lang, Liberty, FOCS 2016) 实现的 KLL sketch
+ * 1. 所有 compactor 保存在一个 double[] 中，levels[h] 为第 h 层的起始位置，level 0 在最前面，空闲空间在 [0, levels[0])
+ * 2. observe 向前写入 level 0，数组满时压缩最低的满层：排序后隔一个取一个，与上一层归并，均摊 O(1)
+ * 3. 第 h 层容量为 max(8, k * (2/3)^(层数 - 1 - h))，总容量不超过 3k + 8 * 层数，与数据分布无关，
+ *    层数约为 log2(n / k)，rank 误差约为 1.7 / k
+ * 4. 压缩时取奇数位还是偶数位可以由带种子的随机数决定，也可以每层交替，见 {@link #deterministic(Quantile[], int)}
+ *
+ * @author yuan.shichao
+ */
+public class KLLQuantiles implements Quantiles {
+
+    private static final int MIN_WIDTH = 8;
+
+    private static final int DEFAULT_K = 200;
+
+    private final int k;
+
+    /**
+     * null 时每层交替取奇偶位，见 coins
+     */
+    private final Random random;
+
+    /**
+     * random 的种子，merge 用它为结果生成种子
+     */
+    private final long seed;
+
+    private long coins = 0;
+
+    private double[] items;
+
+    /**
+     * 第 h 层的数据在 [levels[h], levels[h + 1])，levels[numLevels] == items.length
+     */
+    private int[] levels;
+
+    private int numLevels;
+
+    private long count = 0;
+
+    private double min = Double.NaN;
+
+    private double max = Double.NaN;
+
+    /**
+     * 查询用的排序视图，写入后重建
+     */
+    private double[] sortedValues = new double[0];
+    private long[] sortedRanks = new long[0];
+    private int sortedSize = 0;
+    private boolean sorted = true;
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    /**
+     * 只使用 quantile，error 由 k 决定
+     */
+    private final Quantile quantiles[];
+
+    private final Collection<Double> registered;
+
+    public KLLQuantiles(Quantile[] quantiles) {
+        this(quantiles, DEFAULT_K);
+    }
+
+    public KLLQuantiles(Quantile[] quantiles, int k) {
+        this(quantiles, k, ThreadLocalRandom.current().nextLong());
+    }
+
+    /**
+     * @param seed 相同的种子和输入得到相同的结果
+     */
+    public KLLQuantiles(Quantile[] quantiles, int k, long seed) {
+        this(quantiles, k, new Random(seed), seed);
+    }
+
+    private KLLQuantiles(Quantile[] quantiles, int k, Random random, long seed) {
+        if (k < MIN_WIDTH) {
+            throw new IllegalArgumentException("k must not be less than " + MIN_WIDTH + ": " + k);
+        }
+        this.quantiles = quantiles;
+        this.k = k;
+        this.random = random;
+        this.seed = seed;
+
+        registered = new ArrayList<>();
+        for (Quantile quantile : quantiles) {
+            registered.add(quantile.getQuantile());
+        }
+
+        items = new double[k];
+        levels = new int[] {k, k};
+        numLevels = 1;
+    }
+
+    /**
+     * 压缩时不使用随机数，每层交替取偶数位和奇数位，结果只由输入决定
+     */
+    public static KLLQuantiles deterministic(Quantile[] quantiles, int k) {
+        return new KLLQuantiles(quantiles, k, null, 0);
+    }
+
+    @Override
+    public void observe(double value) {
+        if (Double.isNaN(value)) {
+            return;
+        }
+
+        lock.lock();
+        try {
+            if (levels[0] == 0) {
+                compressWhileUpdating();
+            }
+            items[--levels[0]] = value;
+            count++;
+            if (count == 1) {
+                min = value;
+                max = value;
+            } else if (value < min) {
+                min = value;
+            } else if (value > max) {
+                max = value;
+            }
+            sorted = false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 把 other 的数据合并进来，other 本身不变；两边同一层的数据权重相同，直接放在一起后重新压缩，
+     * 误差不超过两边误差之和
+     *
+     * @param other KLLQuantiles
+     */
+    public void merge(Quantiles other) {
+        if (other == this) {
+            throw new IllegalArgumentException("can not merge a sketch into itself");
+        }
+        if (!(other instanceof KLLQuantiles)) {
+            throw new IllegalArgumentException("can not merge " + other.getClass().getName());
+        }
+
+        KLLQuantiles source = (KLLQuantiles) other;
+        double[] otherItems;
+        int[] otherLevels;
+        int otherNumLevels;
+        long otherCount;
+        double otherMin;
+        double otherMax;
+        source.lock.lock();
+        try {
+            otherItems = Arrays.copyOfRange(source.items, source.levels[0], source.items.length);
+            otherLevels = new int[source.numLevels + 1];
+            for (int h = 0; h <= source.numLevels; h++) {
+                otherLevels[h] = source.levels[h] - source.levels[0];
+            }
+            otherNumLevels = source.numLevels;
+            otherCount = source.count;
+            otherMin = source.min;
+            otherMax = source.max;
+        } finally {
+            source.lock.unlock();
+        }
+
+        if (otherCount == 0) {
+            return;
+        }
+
+        lock.lock();
+        try {
+            mergeLevels(otherItems, otherLevels, otherNumLevels);
+            if (count == 0) {
+                min = otherMin;
+                max = otherMax;
+            } else {
+                min = Math.min(min, otherMin);
+                max = Math.max(max, otherMax);
+            }
+            count += otherCount;
+            sorted = false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 依次合并多个 sketch，结果使用第一个 sketch 的 k 和压缩方式，输入本身不变
+     * 第一个 sketch 带种子时结果的种子由它的种子得到，相同的输入合并结果相同
+     */
+    public static KLLQuantiles merge(Collection<? extends Quantiles> sketches) {
+        if (sketches.isEmpty()) {
+            throw new IllegalArgumentException("no sketches to merge");
+        }
+
+        KLLQuantiles merged = null;
+        for (Quantiles sketch : sketches) {
+            if (!(sketch instanceof KLLQuantiles)) {
+                throw new IllegalArgumentException("can not merge " + sketch.getClass().getName());
+            }
+            if (merged == null) {
+                KLLQuantiles first = (KLLQuantiles) sketch;
+                merged = first.random == null
+                        ? deterministic(first.quantiles, first.k)
+                        : new KLLQuantiles(first.quantiles, first.k, first.seed);
+            }
+            merged.merge(sketch);
+        }
+        return merged;
+    }
+
+    @Override
+    public double get(double q) {
+        lock.lock();
+        try {
+            if (count == 0) {
+                return Double.NaN;
+            }
+            sortIfNeeded();
+            return valueAt(q);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void getAll(double[] qs, double[] out) {
+        lock.lock();
+        try {
+            if (count == 0) {
+                Arrays.fill(out, 0, qs.length, Double.NaN);
+                return;
+            }
+            sortIfNeeded();
+            for (int i = 0; i < qs.length; i++) {
+                out[i] = valueAt(qs[i]);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public Collection<Double> monitored() {
+        return registered;
+    }
+
+    /**
+     * 没有独立的 buffer，level 0 就是 buffer，所有数据写入后立即可见
+     */
+    @Override
+    public void flushBuffer() {
+    }
+
+    /**
+     * 保留的数据个数
+     */
+    @Override
+    public int getSampleSize() {
+        lock.lock();
+        try {
+            return items.length - levels[0];
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public long getCount() {
+        lock.lock();
+        try {
+            return count;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 当前 compactor 数组的长度，即保留数据个数的上限
+     */
+    public int getCapacity() {
+        lock.lock();
+        try {
+            return items.length;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getK() {
+        return k;
+    }
+
+    public Quantile[] getQuantiles() {
+        return quantiles;
+    }
+
+    /**
+     * 第一个累计权重超过 q * count 的值，两端使用最小值和最大值
+     */
+    private double valueAt(double q) {
+        if (q <= 0) {
+            return min;
+        }
+        if (q >= 1) {
+            return max;
+        }
+
+        long rank = (long) (q * count);
+        int low = 0;
+        int high = sortedSize - 1;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (sortedRanks[mid] > rank) {
+                high = mid;
+            } else {
+                low = mid + 1;
+            }
+        }
+        return sortedValues[low];
+    }
+
+    /**
+     * 把各层归并成一个按值排序的数组，sortedRanks[i] 为前 i + 1 个值的权重之和
+     */
+    private void sortIfNeeded() {
+        if (sorted) {
+            return;
+        }
+
+        int retained = items.length - levels[0];
+        if (sortedValues.length < retained) {
+            sortedValues = new double[retained];
+            sortedRanks = new long[retained];
+        }
+
+        // 先把每层的值和权重顺序写入，level 0 排序，之后逐层归并
+        long[] weights = sortedRanks;
+        double[] values = sortedValues;
+        int level0 = levels[1] - levels[0];
+        System.arraycopy(items, levels[0], values, 0, level0);
+        Arrays.sort(values, 0, level0);
+        Arrays.fill(weights, 0, level0, 1);
+
+        double[] tmpValues = new double[retained];
+        long[] tmpWeights = new long[retained];
+        int size = level0;
+        for (int h = 1; h < numLevels; h++) {
+            int from = levels[h];
+            int to = levels[h + 1];
+            long weight = 1L << h;
+
+            int i = 0;
+            int j = from;
+            int out = 0;
+            while (i < size || j < to) {
+                if (j == to || (i < size && values[i] <= items[j])) {
+                    tmpValues[out] = values[i];
+                    tmpWeights[out] = weights[i];
+                    i++;
+                } else {
+                    tmpValues[out] = items[j];
+                    tmpWeights[out] = weight;
+                    j++;
+                }
+                out++;
+            }
+            System.arraycopy(tmpValues, 0, values, 0, out);
+            System.arraycopy(tmpWeights, 0, weights, 0, out);
+            size = out;
+        }
+
+        for (int i = 1; i < size; i++) {
+            weights[i] += weights[i - 1];
+        }
+        sortedSize = size;
+        sorted = true;
+    }
+
+    /**
+     * 数组已满，压缩最低的满层，必要时先在顶部增加一层
+     */
+    private void compressWhileUpdating() {
+        int level = findFullLevel();
+        if (level == numLevels - 1) {
+            addEmptyTopLevel();
+        }
+        compactLevel(level);
+    }
+
+    /**
+     * 最低的数据个数不小于容量的层，没有时返回 -1；数组已满时一定存在
+     */
+    private int findFullLevel() {
+        for (int h = 0; h < numLevels; h++) {
+            if (levels[h + 1] - levels[h] >= levelCapacity(h, numLevels)) {
+                return h;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * 把第 level 层的一半数据提升到 level + 1 层，腾出的空间移动到数组最前面；
+     * 数据个数为奇数时第一个值留在原层。调用方保证 level + 1 层存在
+     */
+    private void compactLevel(int level) {
+        int rawBeg = levels[level];
+        int rawLim = levels[level + 1];
+        int popAbove = levels[level + 2] - rawLim;
+        int rawPop = rawLim - rawBeg;
+        boolean oddPop = (rawPop & 1) == 1;
+        int adjBeg = oddPop ? rawBeg + 1 : rawBeg;
+        int adjPop = oddPop ? rawPop - 1 : rawPop;
+        int halfAdjPop = adjPop / 2;
+
+        if (level == 0) {
+            Arrays.sort(items, adjBeg, adjBeg + adjPop);
+        }
+
+        int offset = coin(level);
+        if (popAbove == 0) {
+            // 上一层为空，保留的一半直接放在 [rawLim - halfAdjPop, rawLim)
+            int j = adjBeg + adjPop - 1 - offset;
+            for (int i = adjBeg + adjPop - 1; i >= adjBeg + halfAdjPop; i--) {
+                items[i] = items[j];
+                j -= 2;
+            }
+        } else {
+            // 保留的一半先放在 [adjBeg, adjBeg + halfAdjPop)，再与上一层从前向后归并到 [adjBeg + halfAdjPop, ...)
+            int j = adjBeg + offset;
+            for (int i = adjBeg; i < adjBeg + halfAdjPop; i++) {
+                items[i] = items[j];
+                j += 2;
+            }
+            mergeUp(adjBeg, halfAdjPop, rawLim, popAbove);
+        }
+
+        levels[level + 1] -= halfAdjPop;
+        if (oddPop) {
+            levels[level] = levels[level + 1] - 1;
+            items[levels[level]] = items[rawBeg];
+        } else {
+            levels[level] = levels[level + 1];
+        }
+
+        // 下面各层整体上移，空闲空间留在最前面
+        if (level > 0) {
+            System.arraycopy(items, levels[0], items, levels[0] + halfAdjPop, rawBeg - levels[0]);
+            for (int h = 0; h < level; h++) {
+                levels[h] += halfAdjPop;
+            }
+        }
+    }
+
+    /**
+     * 归并 [a, a + lengthA) 和 [b, b + lengthB)，写入 [a + lengthA, b + lengthB)，写游标不会超过未读的 b
+     */
+    private void mergeUp(int a, int lengthA, int b, int lengthB) {
+        int i = a;
+        int limA = a + lengthA;
+        int j = b;
+        int limB = b + lengthB;
+        int out = limA;
+        while (i < limA && j < limB) {
+            if (items[i] <= items[j]) {
+                items[out++] = items[i++];
+            } else {
+                items[out++] = items[j++];
+            }
+        }
+        while (i < limA) {
+            items[out++] = items[i++];
+        }
+        // 剩下的 b 已经在正确的位置
+    }
+
+    private int coin(int level) {
+        if (random != null) {
+            return random.nextBoolean() ? 1 : 0;
+        }
+        coins ^= 1L << level;
+        return (int) ((coins >>> level) & 1);
+    }
+
+    /**
+     * 在顶部增加一个空层，数组扩大新的 level 0 的容量，原有数据整体后移
+     */
+    private void addEmptyTopLevel() {
+        int delta = levelCapacity(0, numLevels + 1);
+        double[] newItems = new double[items.length + delta];
+        System.arraycopy(items, levels[0], newItems, levels[0] + delta, items.length - levels[0]);
+
+        int[] newLevels = new int[numLevels + 2];
+        for (int h = 0; h <= numLevels; h++) {
+            newLevels[h] = levels[h] + delta;
+        }
+        newLevels[numLevels + 1] = newItems.length;
+
+        items = newItems;
+        levels = newLevels;
+        numLevels++;
+    }
+
+    /**
+     * 按层合并另一个 sketch 的数据，之后压缩满层直到数据个数不超过总容量，最后把数组收缩到总容量
+     */
+    private void mergeLevels(double[] otherItems, int[] otherLevels, int otherNumLevels) {
+        int newNumLevels = Math.max(numLevels, otherNumLevels);
+        int retained = items.length - levels[0];
+        int total = retained + otherItems.length;
+
+        // 新数组至少能放下所有数据，每层从后向前摆放，数组前面为空闲空间
+        int length = Math.max(total, totalCapacity(newNumLevels));
+        double[] newItems = new double[length];
+        int[] newLevels = new int[newNumLevels + 1];
+        newLevels[newNumLevels] = length;
+        int end = length;
+        for (int h = newNumLevels - 1; h >= 0; h--) {
+            int fromA = h < numLevels ? levels[h] : 0;
+            int toA = h < numLevels ? levels[h + 1] : 0;
+            int fromB = h < otherNumLevels ? otherLevels[h] : 0;
+            int toB = h < otherNumLevels ? otherLevels[h + 1] : 0;
+            int start = end - (toA - fromA) - (toB - fromB);
+
+            if (h == 0) {
+                System.arraycopy(items, fromA, newItems, start, toA - fromA);
+                System.arraycopy(otherItems, fromB, newItems, start + toA - fromA, toB - fromB);
+            } else {
+                int out = start;
+                while (fromA < toA || fromB < toB) {
+                    if (fromB == toB || (fromA < toA && items[fromA] <= otherItems[fromB])) {
+                        newItems[out++] = items[fromA++];
+                    } else {
+                        newItems[out++] = otherItems[fromB++];
+                    }
+                }
+            }
+            newLevels[h] = start;
+            end = start;
+        }
+
+        items = newItems;
+        levels = newLevels;
+        numLevels = newNumLevels;
+
+        // 只在数据个数超过总容量时压缩，否则增加顶层后下面各层容量变小，会引起不必要的连续压缩
+        int level;
+        while (items.length - levels[0] > totalCapacity(numLevels) && (level = findFullLevel()) >= 0) {
+            if (level == numLevels - 1) {
+                addEmptyTopLevel();
+            }
+            compactLevel(level);
+        }
+
+        int capacity = totalCapacity(numLevels);
+        if (items.length > capacity) {
+            int shrink = items.length - capacity;
+            double[] shrunk = new double[capacity];
+            System.arraycopy(items, levels[0], shrunk, levels[0] - shrink, items.length - levels[0]);
+            for (int h = 0; h <= numLevels; h++) {
+                levels[h] -= shrink;
+            }
+            items = shrunk;
+        }
+    }
+
+    private int totalCapacity(int numLevels) {
+        int total = 0;
+        for (int h = 0; h < numLevels; h++) {
+            total += levelCapacity(h, numLevels);
+        }
+        return total;
+    }
+
+    private int levelCapacity(int height, int numLevels) {
+        int depth = numLevels - height - 1;
+        return (int) Math.max(MIN_WIDTH, Math.round(k * Math.pow(2.0 / 3.0, depth)));
+    }
+
+}
@@ -0,0 +1,279 @@
+package scyuan.quantiles.tdigest;
+
+import scyuan.quantiles.Quantiles;
+import scyuan.quantiles.ckms.BatchQuery;
+import scyuan.quantiles.ckms.Quantile;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 线程安全，按照 "Computing Extremely Accurate Quantiles Using t-Digests" 实现的 merging t-digest
+ * 1. 质心的 mean/weight 保存在 primitive 数组中，按 mean 升序排列
+ * 2. observe 写入 buffer，buffer 满时排序后与现有质心一次归并到备用数组，完成后交换，不分配内存
+ * 3. 归并时使用 scale function k1 = compression / 2π * asin(2q - 1)，每个质心在 k 上的跨度不超过 1，
+ *    质心个数不超过 compression + 2，与数据量和 Quantile 的 error 无关
+ * 4. 查询时在相邻质心的中心之间线性插值，两端使用最小值和最大值
+ *
+ * @author yuan.shichao
+ */
+public class TDigestQuantiles implements Quantiles {
+
+    private final double compression;
+
+    private final double[] buffer;
+
+    private int bufferCount = 0;
+
+    private double[] means;
+    private long[] weights;
+
+    /**
+     * 归并的目标，与上面两个数组交替使用
+     */
+    private double[] mergeMeans;
+    private long[] mergeWeights;
+
+    /**
+     * 质心个数
+     */
+    private int size = 0;
+
+    private long count = 0;
+
+    private double min = Double.POSITIVE_INFINITY;
+
+    private double max = Double.NEGATIVE_INFINITY;
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    /**
+     * 只使用 quantile，error 由 compression 决定
+     */
+    private final Quantile quantiles[];
+
+    private final Collection<Double> registered;
+
+    public TDigestQuantiles(Quantile[] quantiles) {
+        this(quantiles, 100);
+    }
+
+    /**
+     * @param compression 越大精度越高，质心个数约为 compression / 2 到 compression
+     */
+    public TDigestQuantiles(Quantile[] quantiles, double compression) {
+        if (!(compression >= 10)) {
+            throw new IllegalArgumentException("compression must not be less than 10: " + compression);
+        }
+        this.quantiles = quantiles;
+        this.compression = compression;
+
+        registered = new ArrayList<>();
+        for (Quantile quantile : quantiles) {
+            registered.add(quantile.getQuantile());
+        }
+
+        int bufferSize = 5 * (int) Math.ceil(compression);
+        int capacity = (int) Math.ceil(compression) + 2 + bufferSize;
+        buffer = new double[bufferSize];
+        means = new double[capacity];
+        weights = new long[capacity];
+        mergeMeans = new double[capacity];
+        mergeWeights = new long[capacity];
+    }
+
+    @Override
+    public void observe(double value) {
+        lock.lock();
+        try {
+            buffer[bufferCount++] = value;
+            if (bufferCount == buffer.length) {
+                mergeBuffer();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public double get(double q) {
+        lock.lock();
+        try {
+            if (size == 0) {
+                return Double.NaN;
+            }
+
+            double index = q * count;
+            int i = 0;
+            double center = weights[0] / 2.0;
+            while (i < size - 1 && center + (weights[i] + weights[i + 1]) / 2.0 <= index) {
+                center += (weights[i] + weights[i + 1]) / 2.0;
+                i++;
+            }
+            return interpolate(i, center, index);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 按 qs 从小到大扫描一次质心，结果与逐个调用 get 相同
+     */
+    @Override
+    public void getAll(double[] qs, double[] out) {
+        lock.lock();
+        try {
+            if (size == 0) {
+                Arrays.fill(out, 0, qs.length, Double.NaN);
+                return;
+            }
+
+            int i = 0;
+            double center = weights[0] / 2.0;
+            for (int k : BatchQuery.order(qs)) {
+                double index = qs[k] * count;
+                while (i < size - 1 && center + (weights[i] + weights[i + 1]) / 2.0 <= index) {
+                    center += (weights[i] + weights[i + 1]) / 2.0;
+                    i++;
+                }
+                out[k] = interpolate(i, center, index);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public Collection<Double> monitored() {
+        return registered;
+    }
+
+    @Override
+    public void flushBuffer() {
+        lock.lock();
+        try {
+            mergeBuffer();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 质心个数
+     */
+    @Override
+    public int getSampleSize() {
+        lock.lock();
+        try {
+            return size;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 不包含 buffer 中的数据
+     */
+    @Override
+    public long getCount() {
+        lock.lock();
+        try {
+            return count;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public double getCompression() {
+        return compression;
+    }
+
+    public Quantile[] getQuantiles() {
+        return quantiles;
+    }
+
+    /**
+     * center 为第 i 个质心中心的 rank，index 不小于 center，或者 i 为第一个质心
+     */
+    private double interpolate(int i, double center, double index) {
+        if (index < center) {
+            return min + (means[0] - min) * (index / center);
+        }
+        if (i == size - 1) {
+            double half = weights[i] / 2.0;
+            return means[i] + (max - means[i]) * Math.min(1, (index - center) / half);
+        }
+        double span = (weights[i] + weights[i + 1]) / 2.0;
+        return means[i] + (means[i + 1] - means[i]) * ((index - center) / span);
+    }
+
+    /**
+     * 排序 buffer，与现有质心按 mean 归并，能放进当前质心的就合并，否则开始新的质心
+     */
+    private void mergeBuffer() {
+        if (bufferCount == 0) {
+            return;
+        }
+
+        Arrays.sort(buffer, 0, bufferCount);
+        min = Math.min(min, buffer[0]);
+        max = Math.max(max, buffer[bufferCount - 1]);
+
+        long total = count + bufferCount;
+        int i = 0;
+        int j = 0;
+        int out = -1;
+        // out 之前所有质心的 weight 之和，以及 out 的累计 weight 上限
+        long weightSoFar = 0;
+        double weightLimit = 0;
+        while (i < size || j < bufferCount) {
+            double mean;
+            long weight;
+            if (j == bufferCount || (i < size && means[i] <= buffer[j])) {
+                mean = means[i];
+                weight = weights[i];
+                i++;
+            } else {
+                mean = buffer[j];
+                weight = 1;
+                j++;
+            }
+
+            if (out >= 0 && weightSoFar + mergeWeights[out] + weight <= weightLimit) {
+                long merged = mergeWeights[out] + weight;
+                mergeMeans[out] += (mean - mergeMeans[out]) * weight / merged;
+                mergeWeights[out] = merged;
+            } else {
+                if (out >= 0) {
+                    weightSoFar += mergeWeights[out];
+                }
+                out++;
+                mergeMeans[out] = mean;
+                mergeWeights[out] = weight;
+                weightLimit = total * limit((double) weightSoFar / total);
+            }
+        }
+
+        double[] outMeans = mergeMeans;
+        long[] outWeights = mergeWeights;
+        mergeMeans = means;
+        mergeWeights = weights;
+        means = outMeans;
+        weights = outWeights;
+
+        size = out + 1;
+        count = total;
+        bufferCount = 0;
+    }
+
+    /**
+     * 从 q 开始，k1 增加 1 时对应的 q
+     */
+    private double limit(double q) {
+        double k = Math.asin(2 * q - 1) + 2 * Math.PI / compression;
+        return k >= Math.PI / 2 ? 1 : (Math.sin(k) + 1) / 2;
+    }
+
+}
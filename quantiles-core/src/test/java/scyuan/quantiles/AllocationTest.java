@@ -0,0 +1,111 @@
+package scyuan.quantiles;
+
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+import scyuan.quantiles.ckms.CKMSQuantilesPrimitive;
+import scyuan.quantiles.ckms.CKMSQuantilesQueue;
+import scyuan.quantiles.ckms.CKMSQuantilesStriped;
+import scyuan.quantiles.ckms.CKMSQuantilesThreadLocal;
+import scyuan.quantiles.ckms.Quantile;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Random;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * primitive 估计器稳定后 observe 和 get 不应该分配内存
+ * 先写入一轮数据让摘要和 buffer 的数组扩容到稳定大小，再用 HotSpot 的线程分配计数测量第二轮；
+ * 摘要的大小随数据量缓慢增长，偶尔扩容是允许的，所以阈值取每 64 次操作 1 字节，远小于每次操作分配一个对象
+ *
+ * @author yuan.shichao
+ */
+public class AllocationTest {
+
+    private static final Quantile[] QUANTILES = new Quantile[] {
+            new Quantile(0.50, 0.01),
+            new Quantile(0.90, 0.01),
+            new Quantile(0.99, 0.001)
+    };
+
+    private static final int SIZE = 1 << 20;
+
+    private static final double[] PERCENTILES = {0.5, 0.9, 0.99};
+
+    private com.sun.management.ThreadMXBean threadMXBean;
+
+    private double[] values;
+
+    @Before
+    public void setup() {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+        threadMXBean = (com.sun.management.ThreadMXBean) bean;
+        Assume.assumeTrue(threadMXBean.isThreadAllocatedMemorySupported());
+        threadMXBean.setThreadAllocatedMemoryEnabled(true);
+
+        Random random = new Random(1);
+        values = new double[SIZE];
+        for (int i = 0; i < SIZE; i++) {
+            values[i] = random.nextDouble() * 10000000000d;
+        }
+    }
+
+    @Test
+    public void testPrimitive() {
+        check(new CKMSQuantilesPrimitive(QUANTILES));
+    }
+
+    @Test
+    public void testThreadLocal() {
+        check(new CKMSQuantilesThreadLocal(QUANTILES));
+    }
+
+    @Test
+    public void testStriped() {
+        check(new CKMSQuantilesStriped(QUANTILES));
+    }
+
+    @Test
+    public void testQueue() {
+        check(new CKMSQuantilesQueue(QUANTILES));
+    }
+
+    private void check(Quantiles estimator) {
+        observe(estimator);
+        get(estimator, SIZE / 16);
+
+        long observed = allocatedBytes();
+        observe(estimator);
+        observed = allocatedBytes() - observed;
+
+        long queried = allocatedBytes();
+        double sum = get(estimator, SIZE / 16);
+        queried = allocatedBytes() - queried;
+
+        String name = estimator.getClass().getSimpleName();
+        assertTrue(name + ".observe allocated " + observed + " bytes", observed < SIZE / 64);
+        assertTrue(name + ".get allocated " + queried + " bytes", queried < SIZE / 16 / 64);
+        assertTrue(sum > 0);
+    }
+
+    private void observe(Quantiles estimator) {
+        for (double value : values) {
+            estimator.observe(value);
+        }
+    }
+
+    private double get(Quantiles estimator, int times) {
+        double sum = 0;
+        for (int i = 0; i < times; i++) {
+            sum += estimator.get(PERCENTILES[i % PERCENTILES.length]);
+        }
+        return sum;
+    }
+
+    private long allocatedBytes() {
+        return threadMXBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+}
@@ -4,8 +4,20 @@ import org.junit.Before;
 import org.junit.BeforeClass;
 import org.junit.Test;
 import scyuan.quantiles.ckms.*;
+import scyuan.quantiles.ddsketch.DDSketchQuantiles;
+import scyuan.quantiles.gk.GKQuantiles;
+import scyuan.quantiles.histogram.HistogramQuantiles;
+import scyuan.quantiles.kll.KLLQuantiles;
+import scyuan.quantiles.tdigest.TDigestQuantiles;
 
 import java.util.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
 
 /**
  * @author yuan.shichao
@@ -77,29 +89,245 @@ public class CKMSQuantilesTest {
         estimate(estimator);
     }
 
+    /**
+     * 8 个写线程，另有一个线程在 locked 方式下不停 get() 占用摘要的锁，归并跟不上写入时写线程等待归并，不丢弃数据
+     */
+    @Test
+    public void testThreadLocalConcurrent() throws InterruptedException {
+        CKMSQuantilesThreadLocal estimator = new CKMSQuantilesThreadLocal(quantiles, SnapshotPolicy.locked(), 16);
+        Thread[] threads = new Thread[8];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread(() -> {
+                for (int i = 0; i < 200000; i++) {
+                    estimator.observe(i);
+                }
+            });
+            threads[t].start();
+        }
+
+        AtomicBoolean writing = new AtomicBoolean(true);
+        Thread reader = new Thread(() -> {
+            while (writing.get()) {
+                estimator.get(0.5);
+            }
+        });
+        reader.start();
+
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        writing.set(false);
+        reader.join();
+
+        estimator.flushBuffer();
+        assertEquals(8 * 200000, estimator.getCount());
+        assertEquals(100000, estimator.get(0.5), 200000 * 0.01);
+        assertEquals(2 * threads.length, estimator.getAllocatedChunks());
+    }
+
+    @Test
+    public void testStriped() {
+        Quantiles estimator = new CKMSQuantilesStriped(quantiles);
+        estimate(estimator);
+    }
+
+    @Test
+    public void testStripedSnapshot() throws InterruptedException {
+        CKMSQuantilesStriped estimator = new CKMSQuantilesStriped(quantiles, 4, SnapshotPolicy.onCompress());
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            int offset = t;
+            threads[t] = new Thread(() -> {
+                for (int i = offset; i < dataArray.length; i += threads.length) {
+                    estimator.observe(dataArray[i]);
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        estimator.flushBuffer();
+        report(estimator);
+
+        // 没有新的 compress 时复用缓存的归并结果
+        QuantilesSnapshot snapshot = estimator.snapshot();
+        assertSame(snapshot, estimator.snapshot());
+        assertEquals(size, snapshot.getCount());
+        assertEquals(size, estimator.getCount());
+        assertWithinRankError(estimator);
+
+        estimator.observe(size);
+        estimator.flushBuffer();
+        assertNotSame(snapshot, estimator.snapshot());
+        assertEquals(size + 1, estimator.snapshot().getCount());
+    }
+
+    @Test
+    public void testTDigest() {
+        Quantiles estimator = new TDigestQuantiles(quantiles, 200);
+        estimate(estimator);
+    }
+
+    @Test
+    public void testKLL() {
+        KLLQuantiles estimator = new KLLQuantiles(quantiles, 200, 1);
+        estimate(estimator);
+        assertTrue(estimator.getSampleSize() <= estimator.getCapacity());
+        assertTrue(estimator.getCapacity() <= 3 * 200 + 8 * 32);
+    }
+
+    @Test
+    public void testKLLMerge() {
+        List<KLLQuantiles> parts = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            parts.add(KLLQuantiles.deterministic(quantiles, 200));
+        }
+        for (int i = 0; i < dataArray.length; i++) {
+            parts.get(i % parts.size()).observe(dataArray[i]);
+        }
+
+        KLLQuantiles merged = KLLQuantiles.merge(parts);
+        report(merged);
+        assertEquals(size, merged.getSize());
+        assertTrue(merged.getSampleSize() <= merged.getCapacity());
+    }
+
+    @Test
+    public void testKLLMergeSeeded() {
+        List<KLLQuantiles> parts = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            parts.add(new KLLQuantiles(quantiles, 200, i));
+        }
+        for (int i = 0; i < 1000000; i++) {
+            parts.get(i % parts.size()).observe(dataArray[i]);
+        }
+
+        // 种子由第一个 sketch 决定，同样的输入合并两次结果相同
+        KLLQuantiles merged = KLLQuantiles.merge(parts);
+        KLLQuantiles again = KLLQuantiles.merge(parts);
+        assertEquals(merged.getSampleSize(), again.getSampleSize());
+        assertArrayEquals(merged.snapshotMonitored(), again.snapshotMonitored(), 0);
+        merged.observe(0);
+        again.observe(0);
+        assertArrayEquals(merged.snapshotMonitored(), again.snapshotMonitored(), 0);
+    }
+
+    @Test
+    public void testHistogram() {
+        Quantiles estimator = new HistogramQuantiles(quantiles, 1, size, 3);
+        estimate(estimator);
+    }
+
+    @Test
+    public void testDDSketch() {
+        Quantiles estimator = new DDSketchQuantiles(quantiles, 0.01);
+        estimate(estimator);
+    }
+
+    @Test
+    public void testGK() {
+        GKQuantiles estimator = new GKQuantiles(quantiles, 0.0001);
+        estimate(estimator);
+
+        // 所有百分位的 rank 误差都不超过 ε·n
+        if (!isRand) {
+            for (Quantile q : quantiles) {
+                double rank = estimator.get(q.getQuantile());
+                assertEquals(q.getQuantile() * size, rank, 0.0001 * size + 1);
+            }
+        }
+    }
+
+    @Test
+    public void testHybrid() {
+        Quantiles estimator = new HybridQuantiles(quantiles, 10000);
+        estimate(estimator);
+    }
+
+    @Test
+    public void testPrimitiveSnapshot() {
+        CKMSQuantilesPrimitive locked = new CKMSQuantilesPrimitive(quantiles);
+        CKMSQuantilesPrimitive estimator = new CKMSQuantilesPrimitive(quantiles, SnapshotPolicy.onCompress());
+        for (double v : dataArray) {
+            locked.observe(v);
+        }
+        locked.flushBuffer();
+        estimate(estimator);
+
+        assertArrayEquals(locked.snapshotMonitored(), estimator.snapshotMonitored(), 0);
+        assertEquals(locked.getCount(), estimator.snapshot().getCount());
+    }
+
+    @Test
+    public void testMerge() {
+        List<CKMSQuantilesPrimitive> parts = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            parts.add(new CKMSQuantilesPrimitive(quantiles));
+        }
+        for (int i = 0; i < dataArray.length; i++) {
+            parts.get(i % parts.size()).observe(dataArray[i]);
+        }
+
+        // 每个 part 的误差为 ε·n/4，两种合并方式的误差都不超过它们之和 ε·n
+        CKMSQuantilesPrimitive merged = CKMSQuantilesPrimitive.merge(parts);
+        report(merged);
+        assertEquals(size, merged.getSize());
+        assertWithinRankError(merged);
+
+        CKMSQuantilesPrimitive pairwise = new CKMSQuantilesPrimitive(quantiles);
+        for (CKMSQuantilesPrimitive part : parts) {
+            pairwise.merge(part);
+        }
+        report(pairwise);
+        assertEquals(size, pairwise.getSize());
+        assertWithinRankError(pairwise);
+    }
+
     private void estimate(Quantiles estimator) {
-        double[] dataArray = CKMSQuantilesTest.dataArray.clone();
         for (double v : dataArray) {
             estimator.observe(v);
         }
         estimator.flushBuffer();
+        report(estimator);
+    }
+
+    private void report(Quantiles estimator) {
+        double[] dataArray = CKMSQuantilesTest.dataArray.clone();
         Arrays.sort(dataArray);
 
         System.out.println(estimator.getClass().getSimpleName());
-        for (Quantile q : quantiles) {
+        double[] estimates = new double[quantiles.length];
+        for (int i = 0; i < quantiles.length; i++) {
+            Quantile q = quantiles[i];
             double estimate = estimator.get(q.getQuantile());
+            estimates[i] = estimate;
             double actual = dataArray[(int) (q.getQuantile() * (size - 1))];
             double off = Math.abs(actual - estimate) / size;
             System.out.println(String.format("Q(%.7f, %.7f) is %.7f (actual %.7f, off by %.7f)",
                     q.getQuantile(), q.getError(), estimate, actual,  off));
         }
+        assertArrayEquals(estimates, estimator.snapshotMonitored(), 0);
 
 
         System.out.println("# of samples: " + estimator.getSampleSize());
-        System.out.println("# of data: " + estimator.getSize());
+        System.out.println("# of data: " + estimator.getCount());
         System.out.println();
     }
 
+    /**
+     * 数据是 0 到 size - 1 的排列，估计值就是 rank，误差不超过 ε·n
+     */
+    private void assertWithinRankError(Quantiles estimator) {
+        if (isRand) {
+            return;
+        }
+        for (Quantile q : quantiles) {
+            double rank = estimator.get(q.getQuantile());
+            assertEquals(q.getQuantile() * size, rank, q.getError() * size + 1);
+        }
+    }
+
     private static void shuffle(double[] dataArray, Random rnd) {
         for (int i = dataArray.length; i > 1; i--) {
             int j = rnd.nextInt(i);
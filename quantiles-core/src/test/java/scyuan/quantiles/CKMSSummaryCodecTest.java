@@ -0,0 +1,140 @@
+package scyuan.quantiles;
+
+import org.junit.Test;
+import scyuan.quantiles.ckms.CKMSQuantilesPrimitive;
+import scyuan.quantiles.ckms.CKMSSummaryCodec;
+import scyuan.quantiles.ckms.CKMSSummaryCodec.ValueEncoding;
+import scyuan.quantiles.ckms.Quantile;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+/**
+ * @author yuan.shichao
+ */
+public class CKMSSummaryCodecTest {
+
+    private static final Quantile[] QUANTILES = new Quantile[] {
+            new Quantile(0.50, 0.01),
+            new Quantile(0.90, 0.01),
+            new Quantile(0.95, 0.001),
+            new Quantile(0.99, 0.001),
+            new Quantile(0.999, 0.0001),
+            new Quantile(0.9999, 0.00001)
+    };
+
+    @Test
+    public void testRoundTrip() {
+        CKMSQuantilesPrimitive estimator = new CKMSQuantilesPrimitive(QUANTILES);
+        Random r = new Random(1);
+        for (int i = 0; i < 1000000; i++) {
+            estimator.observe(Math.exp(r.nextGaussian()) * 1000);
+        }
+        // 不调用 flushBuffer，encode 负责刷新
+
+        for (ValueEncoding encoding : ValueEncoding.values()) {
+            ByteBuffer buffer = ByteBuffer.allocate(CKMSSummaryCodec.maxEncodedSize(estimator));
+            CKMSSummaryCodec.encode(estimator, buffer, encoding);
+            buffer.flip();
+            int encodedSize = buffer.remaining();
+
+            CKMSQuantilesPrimitive decoded = CKMSSummaryCodec.decode(buffer);
+            assertEquals(0, buffer.remaining());
+            assertEquals(estimator.getCount(), decoded.getCount());
+            assertEquals(estimator.getSampleSize(), decoded.getSampleSize());
+            assertArrayEquals(estimator.snapshotMonitored(), decoded.snapshotMonitored(), 0);
+
+            System.out.println(String.format("%s: %d bytes for %d samples", encoding, encodedSize, decoded.getSampleSize()));
+        }
+    }
+
+    @Test
+    public void testEmpty() {
+        CKMSQuantilesPrimitive estimator = new CKMSQuantilesPrimitive(QUANTILES);
+        ByteBuffer buffer = ByteBuffer.allocate(CKMSSummaryCodec.maxEncodedSize(estimator));
+        CKMSSummaryCodec.encode(estimator, buffer);
+        buffer.flip();
+
+        CKMSQuantilesPrimitive decoded = CKMSSummaryCodec.decode(buffer);
+        assertEquals(0, decoded.getSize());
+        assertEquals(Double.NaN, decoded.get(0.5), 0);
+    }
+
+    /**
+     * 反复与自身归并，count 和单个元组的 g 都超过 int 范围
+     */
+    @Test
+    public void testLongCount() {
+        Quantile[] quantiles = new Quantile[] {new Quantile(0.50, 0.05), new Quantile(0.90, 0.01)};
+        int n = 100000;
+        CKMSQuantilesPrimitive merged = new CKMSQuantilesPrimitive(quantiles);
+        for (int i = 0; i < n; i++) {
+            merged.observe(i);
+        }
+
+        for (int i = 0; i < 20; i++) {
+            merged = CKMSQuantilesPrimitive.merge(Arrays.asList(merged, merged));
+        }
+        assertEquals((long) n << 20, merged.getCount());
+        assertEquals(Integer.MAX_VALUE, merged.getSize());
+        for (Quantile quantile : quantiles) {
+            assertEquals(quantile.getQuantile() * n, merged.get(quantile.getQuantile()), quantile.getError() * n);
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(CKMSSummaryCodec.maxEncodedSize(merged));
+        CKMSSummaryCodec.encode(merged, buffer);
+        buffer.flip();
+        CKMSQuantilesPrimitive decoded = CKMSSummaryCodec.decode(buffer);
+        assertEquals(merged.getCount(), decoded.getCount());
+        assertArrayEquals(merged.snapshotMonitored(), decoded.snapshotMonitored(), 0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnsupportedVersion() {
+        CKMSSummaryCodec.decode(ByteBuffer.wrap(new byte[] {2, 0}));
+    }
+
+    @Test
+    public void testTruncated() {
+        CKMSQuantilesPrimitive estimator = new CKMSQuantilesPrimitive(QUANTILES);
+        for (int i = 0; i < 10000; i++) {
+            estimator.observe(i);
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(CKMSSummaryCodec.maxEncodedSize(estimator));
+        CKMSSummaryCodec.encode(estimator, buffer);
+        buffer.flip();
+
+        for (int length : new int[] {1, 2, 10, buffer.remaining() / 2, buffer.remaining() - 1}) {
+            ByteBuffer truncated = buffer.duplicate();
+            truncated.limit(length);
+            assertRejected(truncated);
+        }
+    }
+
+    /**
+     * 声明的个数远超输入长度时不分配内存，直接拒绝
+     */
+    @Test
+    public void testCorruptCounts() {
+        // quantile 个数为 Integer.MAX_VALUE
+        assertRejected(ByteBuffer.wrap(new byte[] {1, 0, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0x07, 0, 0, 0}));
+        // 没有 quantile，count 为 0，size 为 Integer.MAX_VALUE
+        assertRejected(ByteBuffer.wrap(new byte[] {1, 0, 0, 0, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0x07, 0}));
+        // size 超出 int 范围
+        assertRejected(ByteBuffer.wrap(new byte[] {1, 0, 0, 0, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0x7F, 0}));
+    }
+
+    private static void assertRejected(ByteBuffer in) {
+        try {
+            CKMSSummaryCodec.decode(in);
+            fail("corrupt input is decoded");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+}
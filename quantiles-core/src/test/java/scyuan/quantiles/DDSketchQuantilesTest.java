@@ -0,0 +1,119 @@
+package scyuan.quantiles;
+
+import org.junit.Test;
+import scyuan.quantiles.ckms.Quantile;
+import scyuan.quantiles.ddsketch.DDSketchQuantiles;
+import scyuan.quantiles.ddsketch.IndexMapping;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author yuan.shichao
+ */
+public class DDSketchQuantilesTest {
+
+    private static final Quantile[] QUANTILES = new Quantile[] {
+            new Quantile(0.50, 0.01),
+            new Quantile(0.99, 0.001),
+            new Quantile(0.9999, 0.00001)
+    };
+
+    private static final double[] QS = {0.01, 0.5, 0.9, 0.99, 0.999, 0.9999};
+
+    @Test
+    public void testRelativeError() {
+        double[] data = lognormal(1000000, 1);
+        double[] sorted = data.clone();
+        Arrays.sort(sorted);
+
+        for (IndexMapping mapping : new IndexMapping[] {IndexMapping.logarithmic(0.01), IndexMapping.linearInterpolated(0.01)}) {
+            DDSketchQuantiles estimator = new DDSketchQuantiles(QUANTILES, mapping, 2048);
+            for (double v : data) {
+                estimator.observe(v);
+            }
+            assertEquals(data.length, estimator.getCount());
+            assertTrue(estimator.isDense());
+            assertFalse(estimator.isCollapsed());
+
+            for (double q : QS) {
+                double actual = sorted[(int) (q * data.length)];
+                assertEquals(mapping + " q=" + q, actual, estimator.get(q), actual * 0.01);
+            }
+            System.out.println(mapping + ": " + estimator.getSampleSize() + " buckets");
+        }
+    }
+
+    @Test
+    public void testSparseAndNegative() {
+        DDSketchQuantiles estimator = new DDSketchQuantiles(QUANTILES, 0.01);
+        estimator.observe(-1000);
+        estimator.observe(-10);
+        estimator.observe(0);
+        estimator.observe(10);
+        estimator.observe(1000);
+        assertFalse(estimator.isDense());
+        assertEquals(5, estimator.getSampleSize());
+
+        assertEquals(-1000, estimator.get(0), 10);
+        assertEquals(-10, estimator.get(0.2), 0.1);
+        assertEquals(0, estimator.get(0.4), 0);
+        assertEquals(10, estimator.get(0.6), 0.1);
+        assertEquals(1000, estimator.get(1), 10);
+    }
+
+    @Test
+    public void testCollapse() {
+        DDSketchQuantiles estimator = new DDSketchQuantiles(QUANTILES, IndexMapping.logarithmic(0.01), 512);
+        double[] data = lognormal(100000, 3);
+        double[] sorted = data.clone();
+        Arrays.sort(sorted);
+        for (double v : data) {
+            estimator.observe(v);
+        }
+        assertTrue(estimator.isCollapsed());
+        assertTrue(estimator.getSampleSize() <= 512);
+
+        // 合并的是最低的 bucket，高百分位仍然满足相对误差
+        for (double q : new double[] {0.99, 0.999, 0.9999}) {
+            double actual = sorted[(int) (q * data.length)];
+            assertEquals(actual, estimator.get(q), actual * 0.01);
+        }
+    }
+
+    @Test
+    public void testMerge() {
+        double[] data = lognormal(100000, 1);
+        List<DDSketchQuantiles> parts = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            parts.add(new DDSketchQuantiles(QUANTILES, 0.01));
+        }
+        DDSketchQuantiles whole = new DDSketchQuantiles(QUANTILES, 0.01);
+        for (int i = 0; i < data.length; i++) {
+            parts.get(i % parts.size()).observe(data[i]);
+            whole.observe(data[i]);
+        }
+
+        DDSketchQuantiles merged = DDSketchQuantiles.merge(parts);
+        assertEquals(whole.getCount(), merged.getCount());
+        assertEquals(whole.getSampleSize(), merged.getSampleSize());
+        for (double q : QS) {
+            assertEquals(whole.get(q), merged.get(q), 0);
+        }
+    }
+
+    private static double[] lognormal(int size, double sigma) {
+        Random r = new Random(1);
+        double[] data = new double[size];
+        for (int i = 0; i < size; i++) {
+            data[i] = Math.exp(r.nextGaussian() * sigma) * 1000;
+        }
+        return data;
+    }
+}
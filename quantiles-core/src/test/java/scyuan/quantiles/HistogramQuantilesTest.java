@@ -0,0 +1,84 @@
+package scyuan.quantiles;
+
+import org.junit.Test;
+import scyuan.quantiles.ckms.Quantile;
+import scyuan.quantiles.histogram.HistogramQuantiles;
+import scyuan.quantiles.histogram.HistogramSnapshot;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author yuan.shichao
+ */
+public class HistogramQuantilesTest {
+
+    private static final Quantile[] QUANTILES = new Quantile[] {
+            new Quantile(0.50, 0.01),
+            new Quantile(0.99, 0.001)
+    };
+
+    @Test
+    public void testRelativeError() {
+        HistogramQuantiles estimator = new HistogramQuantiles(QUANTILES, 1, 1000000, 2);
+        for (int i = 1; i <= 1000000; i++) {
+            estimator.observe(i);
+        }
+        assertEquals(1000000, estimator.getCount());
+        assertEquals(500000, estimator.get(0.5), 500000 * 0.01);
+        assertEquals(990000, estimator.get(0.99), 990000 * 0.01);
+
+        // 超出范围的值计入两端的 bucket
+        estimator.observe(0);
+        estimator.observe(1e12);
+        assertEquals(1000002, estimator.getCount());
+        assertEquals(1, estimator.get(0), 0.01);
+        assertTrue(estimator.get(1) >= 1000000);
+    }
+
+    @Test
+    public void testIntervalSnapshot() {
+        HistogramQuantiles estimator = new HistogramQuantiles(QUANTILES, 1, 100000, 2);
+        for (int i = 1; i <= 1000; i++) {
+            estimator.observe(i);
+        }
+        HistogramSnapshot first = estimator.intervalSnapshot();
+        assertEquals(1000, first.getCount());
+        assertEquals(500, first.get(0.5), 500 * 0.01);
+
+        for (int i = 1; i <= 1000; i++) {
+            estimator.observe(10000 + i);
+        }
+        HistogramSnapshot second = estimator.intervalSnapshot();
+        assertEquals(1000, second.getCount());
+        assertEquals(10500, second.get(0.5), 10500 * 0.01);
+
+        assertEquals(0, estimator.intervalSnapshot().getCount());
+        assertEquals(2000, estimator.getCount());
+
+        HistogramSnapshot merged = first.merge(second);
+        assertEquals(2000, merged.getCount());
+        assertEquals(estimator.get(0.99), merged.get(0.99), 0);
+    }
+
+    @Test
+    public void testMerge() {
+        HistogramQuantiles[] parts = new HistogramQuantiles[4];
+        for (int i = 0; i < parts.length; i++) {
+            parts[i] = new HistogramQuantiles(QUANTILES, 1, 1000000, 2);
+        }
+        HistogramQuantiles whole = new HistogramQuantiles(QUANTILES, 1, 1000000, 2);
+        for (int i = 1; i <= 100000; i++) {
+            parts[i % parts.length].observe(i);
+            whole.observe(i);
+        }
+
+        HistogramQuantiles merged = HistogramQuantiles.merge(Arrays.asList(parts));
+        assertEquals(whole.getCount(), merged.getCount());
+        assertEquals(whole.getSampleSize(), merged.getSampleSize());
+        assertEquals(whole.get(0.5), merged.get(0.5), 0);
+        assertEquals(whole.get(0.99), merged.get(0.99), 0);
+    }
+}
@@ -0,0 +1,97 @@
+package scyuan.quantiles;
+
+import org.junit.Test;
+import scyuan.quantiles.ckms.HybridQuantiles;
+import scyuan.quantiles.ckms.Quantile;
+import scyuan.quantiles.kll.KLLQuantiles;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author yuan.shichao
+ */
+public class HybridQuantilesTest {
+
+    private static final Quantile[] QUANTILES = new Quantile[] {
+            new Quantile(0.50, 0.01),
+            new Quantile(0.90, 0.01),
+            new Quantile(0.99, 0.001)
+    };
+
+    private static final double[] QS = {0, 0.1, 0.5, 0.9, 0.99, 1};
+
+    @Test
+    public void testExact() {
+        HybridQuantiles estimator = new HybridQuantiles(QUANTILES, 5000);
+        Random r = new Random(1);
+        double[] data = new double[4999];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = r.nextGaussian();
+            estimator.observe(data[i]);
+        }
+        assertFalse(estimator.isPromoted());
+        assertEquals(data.length, estimator.getCount());
+
+        Arrays.sort(data);
+        double[] expected = new double[QS.length];
+        for (int k = 0; k < QS.length; k++) {
+            expected[k] = data[(int) (QS[k] * (data.length - 1))];
+            assertEquals(expected[k], estimator.get(QS[k]), 0);
+        }
+
+        double[] out = new double[QS.length];
+        estimator.getAll(QS, out);
+        assertArrayEquals(expected, out, 0);
+    }
+
+    @Test
+    public void testThreshold() {
+        HybridQuantiles estimator = new HybridQuantiles(QUANTILES, 1000);
+        for (int i = 999; i >= 0; i--) {
+            estimator.observe(i);
+        }
+        assertFalse(estimator.isPromoted());
+        assertEquals(1000, estimator.getCount());
+        assertEquals(0, estimator.get(0), 0);
+        assertEquals(499, estimator.get(0.5), 0);
+        assertEquals(999, estimator.get(1), 0);
+
+        estimator.observe(1000);
+        estimator.flushBuffer();
+        assertTrue(estimator.isPromoted());
+        assertEquals(1001, estimator.getCount());
+    }
+
+    @Test
+    public void testPromote() {
+        HybridQuantiles estimator = new HybridQuantiles(QUANTILES, 1000);
+        for (int i = 0; i < 100000; i++) {
+            estimator.observe(i);
+            if (i == 999) {
+                assertFalse(estimator.isPromoted());
+            }
+        }
+        estimator.flushBuffer();
+        assertTrue(estimator.isPromoted());
+        assertEquals(100000, estimator.getCount());
+        assertEquals(50000, estimator.get(0.5), 100000 * 0.01);
+        assertEquals(99000, estimator.get(0.99), 100000 * 0.001);
+    }
+
+    @Test
+    public void testPromoteToOtherSketch() {
+        HybridQuantiles estimator = new HybridQuantiles(QUANTILES, 100, () -> new KLLQuantiles(QUANTILES, 200, 1));
+        for (int i = 0; i < 10000; i++) {
+            estimator.observe(i);
+        }
+        assertTrue(estimator.isPromoted());
+        assertEquals(10000, estimator.getCount());
+        assertEquals(5000, estimator.get(0.5), 10000 * 0.02);
+    }
+}
@@ -0,0 +1,126 @@
+package scyuan.quantiles;
+
+import org.junit.Test;
+import scyuan.quantiles.ckms.CKMSQuantilesPrimitive;
+import scyuan.quantiles.ckms.Quantile;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author yuan.shichao
+ */
+public class QuantilesFamilyTest {
+
+    private static final Quantile[] QUANTILES = new Quantile[] {
+            new Quantile(0.50, 0.01),
+            new Quantile(0.99, 0.001)
+    };
+
+    private static QuantilesFamily family(int maxSeries, long maxIdle, TimeUnit unit) {
+        return new QuantilesFamily(new String[] {"endpoint", "status", "region"},
+                () -> new CKMSQuantilesPrimitive(QUANTILES), maxSeries, maxIdle, unit);
+    }
+
+    @Test
+    public void testLookup() {
+        QuantilesFamily family = family(1000, 0, TimeUnit.SECONDS);
+        Quantiles a = family.labels("/api", "200", "eu");
+        assertSame(a, family.labels("/api", "200", "eu"));
+        assertSame(a, family.labels(new String[] {"/api", "200", "eu"}));
+        assertNotSame(a, family.labels("/api", "500", "eu"));
+        assertEquals(2, family.size());
+
+        try {
+            family.labels("/api", "200");
+            throw new AssertionError("wrong number of label values is accepted");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+
+        for (int i = 0; i < 500; i++) {
+            family.labels("/api/" + i, "200", "us").observe(i);
+        }
+        assertEquals(502, family.size());
+        assertEquals(0, family.getEvictionCount());
+
+        int[] seen = {0};
+        family.forEach((labels, quantiles) -> {
+            assertEquals(3, labels.length);
+            seen[0]++;
+        });
+        assertEquals(502, seen[0]);
+    }
+
+    @Test
+    public void testSizeEviction() throws InterruptedException {
+        QuantilesFamily family = family(160, 0, TimeUnit.SECONDS);
+        Quantiles hot = family.labels("/hot", "200", "eu");
+
+        for (int i = 0; i < 10000; i++) {
+            family.labels("/api/" + i, "200", "eu");
+            if (i % 20 == 0) {
+                // 保证 hot 的访问时间比之前插入的序列更新
+                Thread.sleep(2);
+                assertSame(hot, family.labels("/hot", "200", "eu"));
+            }
+        }
+
+        assertTrue(family.size() <= 160);
+        assertEquals(10001 - family.size(), family.getSizeEvictionCount());
+        assertEquals(0, family.getIdleEvictionCount());
+        assertSame(hot, family.labels("/hot", "200", "eu"));
+    }
+
+    @Test
+    public void testSmallMaxSeries() throws InterruptedException {
+        for (int maxSeries : new int[] {1, 5}) {
+            QuantilesFamily family = family(maxSeries, 0, TimeUnit.SECONDS);
+            for (int i = 0; i < 1000; i++) {
+                family.labels("/api/" + i, "200", "eu");
+                assertTrue(family.size() <= maxSeries);
+            }
+            assertEquals(maxSeries, family.size());
+            assertEquals(1000 - maxSeries, family.getSizeEvictionCount());
+
+            AtomicInteger largest = new AtomicInteger();
+            Thread[] threads = new Thread[4];
+            for (int t = 0; t < threads.length; t++) {
+                String region = "region-" + t;
+                threads[t] = new Thread(() -> {
+                    for (int i = 0; i < 10000; i++) {
+                        family.labels("/api/" + i, "200", region);
+                        largest.accumulateAndGet(family.size(), Math::max);
+                    }
+                });
+                threads[t].start();
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            assertTrue(largest.get() <= maxSeries);
+            assertEquals(maxSeries, family.size());
+        }
+    }
+
+    @Test
+    public void testIdleEviction() throws InterruptedException {
+        QuantilesFamily family = family(1000, 50, TimeUnit.MILLISECONDS);
+        for (int i = 0; i < 100; i++) {
+            family.labels("/api/" + i, "200", "eu");
+        }
+        assertEquals(0, family.evictIdle());
+
+        Thread.sleep(100);
+        family.labels("/api/0", "200", "eu");
+        assertEquals(99, family.evictIdle());
+        assertEquals(1, family.size());
+        assertEquals(99, family.getIdleEvictionCount());
+        assertEquals(99, family.getEvictionCount());
+    }
+}
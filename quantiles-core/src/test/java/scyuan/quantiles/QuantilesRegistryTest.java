@@ -0,0 +1,123 @@
+package scyuan.quantiles;
+
+import org.junit.Test;
+import scyuan.quantiles.ckms.DoubleBufferPool;
+import scyuan.quantiles.ckms.Quantile;
+import scyuan.quantiles.kll.KLLQuantiles;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author yuan.shichao
+ */
+public class QuantilesRegistryTest {
+
+    private static final Quantile[] QUANTILES = new Quantile[] {
+            new Quantile(0.50, 0.01),
+            new Quantile(0.99, 0.001)
+    };
+
+    @Test
+    public void testLookup() {
+        try (QuantilesRegistry registry = new QuantilesRegistry(QUANTILES, 0, TimeUnit.SECONDS, 2)) {
+            assertNull(registry.get("a"));
+            Quantiles a = registry.getOrCreate("a");
+            assertSame(a, registry.getOrCreate("a"));
+            assertSame(a, registry.get("a"));
+
+            Quantiles b = new KLLQuantiles(QUANTILES, 200, 1);
+            registry.register("b", b);
+            assertSame(b, registry.getOrCreate("b"));
+            try {
+                registry.register("b", b);
+                throw new AssertionError("duplicated name is registered");
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+
+            assertEquals(2, registry.size());
+            assertSame(a, registry.remove("a"));
+            assertEquals(1, registry.size());
+        }
+    }
+
+    @Test
+    public void testScheduledFlush() throws InterruptedException {
+        try (QuantilesRegistry registry = new QuantilesRegistry(QUANTILES, 10, TimeUnit.MILLISECONDS, 2)) {
+            for (int i = 0; i < 100; i++) {
+                Quantiles quantiles = registry.getOrCreate("series-" + i);
+                for (int j = 0; j < 50; j++) {
+                    quantiles.observe(j);
+                }
+            }
+
+            // 写入过程中已经 flush 过的序列会把 buffer 还给后面的序列，分配的个数可能少于 100
+            DoubleBufferPool pool = registry.getBufferPool();
+            long deadline = System.currentTimeMillis() + 10000;
+            while (pool.getPooled() < pool.getAllocated() && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+
+            // 所有 buffer 都已归还，buffer 中的数据已经进入摘要
+            long allocated = pool.getAllocated();
+            assertTrue(allocated <= 100);
+            assertEquals(allocated, pool.getPooled());
+            for (int i = 0; i < 100; i++) {
+                assertEquals(50, registry.get("series-" + i).getCount());
+            }
+        }
+    }
+
+    @Test
+    public void testBufferPool() {
+        // 不启动定时 flush，池的状态只随显式的 flushAll 变化
+        try (QuantilesRegistry registry = new QuantilesRegistry(QUANTILES, 0, TimeUnit.SECONDS, 2)) {
+            for (int i = 0; i < 100; i++) {
+                Quantiles quantiles = registry.getOrCreate("series-" + i);
+                for (int j = 0; j < 50; j++) {
+                    quantiles.observe(j);
+                }
+            }
+
+            DoubleBufferPool pool = registry.getBufferPool();
+            assertEquals(100, pool.getAllocated());
+            assertEquals(0, pool.getPooled());
+
+            registry.flushAll();
+            assertEquals(100, pool.getPooled());
+            for (int i = 0; i < 100; i++) {
+                assertEquals(50, registry.get("series-" + i).getCount());
+            }
+
+            // 再次写入时复用池中的 buffer
+            registry.get("series-7").observe(1);
+            assertEquals(99, pool.getPooled());
+            assertEquals(100, pool.getAllocated());
+        }
+    }
+
+    @Test
+    public void testSnapshot() {
+        try (QuantilesRegistry registry = new QuantilesRegistry(QUANTILES, 0, TimeUnit.SECONDS, 4)) {
+            for (int i = 0; i < 1000; i++) {
+                Quantiles quantiles = registry.getOrCreate("series-" + i);
+                for (int j = 0; j <= i; j++) {
+                    quantiles.observe(j);
+                }
+            }
+
+            Map<String, double[]> snapshot = registry.snapshot();
+            assertEquals(1000, snapshot.size());
+            double[] values = snapshot.get("series-999");
+            assertEquals(2, values.length);
+            assertEquals(500, values[0], 1000 * 0.01);
+            assertTrue(values[1] >= 980);
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package scyuan.quantiles;
+
+import org.junit.Test;
+import scyuan.quantiles.ckms.Quantile;
+import scyuan.quantiles.ckms.TimeWindowQuantiles;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author yuan.shichao
+ */
+public class TimeWindowQuantilesTest {
+
+    private static final Quantile[] QUANTILES = new Quantile[] {
+            new Quantile(0.50, 0.01),
+            new Quantile(0.99, 0.001)
+    };
+
+    private final AtomicLong clock = new AtomicLong();
+
+    @Test
+    public void testExpire() {
+        TimeWindowQuantiles estimator = new TimeWindowQuantiles(QUANTILES, 200, TimeUnit.MILLISECONDS, 4, clock::get);
+        for (int i = 0; i < 10000; i++) {
+            estimator.observe(i);
+        }
+        estimator.flushBuffer();
+        assertEquals(10000, estimator.getSize());
+        assertEquals(5000, estimator.get(0.5), 10000 * 0.01);
+
+        advance(300);
+        assertEquals(0, estimator.getSize());
+        assertTrue(Double.isNaN(estimator.get(0.5)));
+
+        for (int i = 0; i < 10000; i++) {
+            estimator.observe(100000 + i);
+        }
+        estimator.flushBuffer();
+        assertEquals(10000, estimator.getSize());
+        assertEquals(105000, estimator.get(0.5), 10000 * 0.01);
+    }
+
+    @Test
+    public void testRotate() {
+        TimeWindowQuantiles estimator = new TimeWindowQuantiles(QUANTILES, 400, TimeUnit.MILLISECONDS, 4, clock::get);
+        for (int i = 0; i < 1000; i++) {
+            estimator.observe(i);
+        }
+        estimator.flushBuffer();
+
+        // 旧数据所在的 bucket 还在窗口内，两批数据一起统计
+        advance(150);
+        for (int i = 0; i < 1000; i++) {
+            estimator.observe(1000 + i);
+        }
+        estimator.flushBuffer();
+        assertEquals(2000, estimator.getSize());
+        assertEquals(1000, estimator.get(0.5), 2000 * 0.01);
+
+        // 第 400ms 轮转时复用第一批数据的 bucket，第二批数据的 bucket 到第 500ms 才过期
+        advance(300);
+        assertEquals(1000, estimator.getSize());
+        assertEquals(1500, estimator.get(0.5), 1000 * 0.01);
+
+        advance(100);
+        assertEquals(0, estimator.getSize());
+    }
+
+    private void advance(long millis) {
+        clock.addAndGet(TimeUnit.MILLISECONDS.toNanos(millis));
+    }
+}